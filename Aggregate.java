@@ -4,17 +4,42 @@ import java.util.*;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * min). Several aggregates, over any columns, may be computed in the same pass
+ * over the child, grouped by any number of columns; with a single aggregate
+ * and at most one grouping column an {@link IntegerAggregator} or
+ * {@link StringAggregator} does the work, and a {@link MultiAggregator}
+ * otherwise; an IntegerAggregator is itself a MultiAggregator.
+ * <p>
+ * Groups are kept in memory up to a memory budget. Past it, the partially
+ * aggregated groups are written out to hash-partitioned spill files and
+ * aggregation starts afresh; at the end each partition is read back and its
+ * pieces merged, partitioning it again if it is still too big.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the groups held in memory, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024 * 1024;
+    /** Number of partitions groups are spilled into. */
+    private static final int NUM_PARTITIONS = 16;
+    /**
+     * Spilled partitions are re-partitioned at most this many times; past
+     * that, they are merged in memory regardless of the budget.
+     */
+    private static final int MAX_DEPTH = 4;
+
     private DbIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private Aggregator.Op[] aops;
+    private int[] gfields;
     private DbIterator DbItor;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int spillCount = 0;
+
+    /** Spilled partitions not yet merged, and how often each has been partitioned. */
+    private transient ArrayDeque<SpillFile> pending;
+    private transient ArrayDeque<Integer> pendingDepths;
 
     /**
      * Constructor.
@@ -36,10 +61,33 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
     	// some code goes here
+    	this(child, new int[] {afield}, new Aggregator.Op[] {aop},
+    			gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] {gfield});
+    }
+
+    /**
+     * Constructor for several aggregates over composite groups.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operator of each column of afields
+     * @param gfields
+     *            The columns over which we are grouping the result, or an
+     *            empty array if there is no grouping
+     * @throws IllegalArgumentException
+     *            if there are no aggregates, or not one operator per column
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, int[] gfields) {
+    	if (afields.length == 0 || afields.length != aops.length) {
+    		throw new IllegalArgumentException("one operator is needed per aggregate field");
+    	}
     	this.child = child;
-    	this.afield = afield;
-    	this.gfield = gfield;
-    	this.aop = aop;
+    	this.afields = afields.clone();
+    	this.aops = aops.clone();
+    	this.gfields = gfields.clone();
     }
 
     /**
@@ -49,7 +97,16 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
     	// some code goes here
-    	return this.gfield;
+    	return this.gfields.length == 0 ? Aggregator.NO_GROUPING : this.gfields[0];
+    }
+
+    /**
+     * @return the indexes of all the groupby fields in the <b>INPUT</b>
+     *         tuples, which are also the first fields of the output; empty if
+     *         there is no grouping
+     */
+    public int[] groupFields() {
+    	return this.gfields.clone();
     }
 
     /**
@@ -59,19 +116,29 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
     	// some code goes here
-    	if (this.gfield != Aggregator.NO_GROUPING) {
-    		return this.child.getTupleDesc().getFieldName(this.gfield);
+    	if (this.gfields.length != 0) {
+    		return groupFieldName(0);
     	}
         		
     	return null;
     }
 
+    /** @return the name of the i-th groupby field in the <b>OUTPUT</b> tuples */
+    public String groupFieldName(int i) {
+    	return this.child.getTupleDesc().getFieldName(this.gfields[i]);
+    }
+
     /**
      * @return the aggregate field
      * */
     public int aggregateField() {
     	// some code goes here
-    	return afield;
+    	return afields[0];
+    }
+
+    /** @return the fields of all the aggregates, in output order */
+    public int[] aggregateFields() {
+    	return this.afields.clone();
     }
 
     /**
@@ -80,7 +147,12 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
     	// some code goes here
-    	return this.child.getTupleDesc().getFieldName(this.afield);
+    	return aggregateFieldName(0);
+    }
+
+    /** @return the name of the field of the i-th aggregate in the <b>INPUT</b> tuples */
+    public String aggregateFieldName(int i) {
+    	return this.child.getTupleDesc().getFieldName(this.afields[i]);
     }
 
     /**
@@ -88,63 +160,224 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
     	// some code goes here
-    	return aop;
+    	return aops[0];
+    }
+
+    /** @return the operators of all the aggregates, in output order */
+    public Aggregator.Op[] aggregateOps() {
+    	return this.aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
     	return aop.toString();
     }
 
-    public void open() throws NoSuchElementException, DbException,
-	    TransactionAbortedException {
-    	// some code goes here
-    	Aggregator agtor;
-    	Type gfieldType = null;
-    	if (this.gfield != Aggregator.NO_GROUPING) {
-    		gfieldType = this.child.getTupleDesc().getFieldType(this.gfield);
+    /**
+     * Set the number of bytes the groups held in memory may take before they
+     * are spilled to disk. Must be called before the aggregate is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+    	this.memoryBudget = bytes;
+    }
+
+    /** @return the memory budget of the groups held in memory, in bytes */
+    public long getMemoryBudget() {
+    	return memoryBudget;
+    }
+
+    /**
+     * @return the number of times groups were spilled to disk since this
+     *         aggregate was opened
+     */
+    public int getSpillCount() {
+    	return spillCount;
+    }
+
+    private PartialAggregator newAggregator() {
+    	TupleDesc td = this.child.getTupleDesc();
+    	Type[] gfieldTypes = new Type[this.gfields.length];
+    	for (int i = 0; i < gfieldTypes.length; i++) {
+    		gfieldTypes[i] = td.getFieldType(this.gfields[i]);
+    	}
+    	if (this.afields.length > 1 || this.gfields.length > 1) {
+    		Type[] afieldTypes = new Type[this.afields.length];
+    		for (int i = 0; i < afieldTypes.length; i++) {
+    			afieldTypes[i] = td.getFieldType(this.afields[i]);
+    		}
+    		return new MultiAggregator(this.gfields, gfieldTypes, this.afields, afieldTypes, this.aops);
     	}
-    	if (this.child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE)) {
-    		agtor = new IntegerAggregator(this.gfield ,gfieldType, this.afield, this.aop);
+    	int gfield = groupField();
+    	Type gfieldType = gfieldTypes.length == 0 ? null : gfieldTypes[0];
+    	if (td.getFieldType(afields[0]).equals(Type.INT_TYPE)) {
+    		return new IntegerAggregator(gfield, gfieldType, afields[0], aops[0]);
     	} else {
-    		agtor = new StringAggregator(this.gfield, gfieldType, this.afield, this.aop);
+    		return new StringAggregator(gfield, gfieldType, afields[0], aops[0]);
     	}
+    }
+
+    /** @return true if agtor should be spilled to stay within the budget */
+    private boolean overBudget(PartialAggregator agtor) {
+    	return agtor.numGroups() > 1 && agtor.estimateBytes() > memoryBudget;
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+	    TransactionAbortedException {
+    	// some code goes here
+    	spillCount = 0;
+    	aggregateChild();
+    	super.open();
+    }
+
+    /** Read the whole child, leaving either DbItor or pending set up. */
+    private void aggregateChild() throws DbException, TransactionAbortedException {
+    	clearSpill();
+    	PartialAggregator agtor = newAggregator();
+    	SpillFile[] parts = null;
     	
     	this.child.open();
     	while(this.child.hasNext()) {
     		agtor.mergeTupleIntoGroup(this.child.next());
+    		if (overBudget(agtor)) {
+    			parts = spill(agtor, parts, 0);
+    			agtor = newAggregator();
+    		}
     	}
     	
     	this.child.close();
-    	this.DbItor = agtor.iterator();
-    	this.DbItor.open();
-    	super.open();
+    	if (parts == null) {
+    		this.DbItor = agtor.iterator();
+    		this.DbItor.open();
+    	} else {
+    		queue(spill(agtor, parts, 0), 0);
+    		this.DbItor = null;
+    	}
+    }
+
+    /**
+     * Append the groups of agtor to the spill files of their partitions at
+     * the given depth, creating the files as needed.
+     * 
+     * @return parts, or the new files if parts was null
+     */
+    private SpillFile[] spill(PartialAggregator agtor, SpillFile[] parts, int depth)
+    		throws DbException, TransactionAbortedException {
+    	if (parts == null) {
+    		parts = new SpillFile[NUM_PARTITIONS];
+    	}
+    	DbIterator it = agtor.partialIterator();
+    	it.open();
+    	while (it.hasNext()) {
+    		Tuple t = it.next();
+    		// groups only spill with grouping, so the first fields are the group values
+    		int h = 0;
+    		for (int i = 0; i < this.gfields.length; i++) {
+    			h = 31 * h + t.getField(i).hashCode();
+    		}
+    		int part = HashEquiJoin.partition(h, depth, NUM_PARTITIONS);
+    		if (parts[part] == null) {
+    			parts[part] = new SpillFile(agtor.partialTupleDesc());
+    		}
+    		parts[part].add(t);
+    	}
+    	it.close();
+    	spillCount++;
+    	return parts;
+    }
+
+    private void queue(SpillFile[] parts, int depth) {
+    	for (SpillFile f : parts) {
+    		if (f != null) {
+    			pending.push(f);
+    			pendingDepths.push(depth);
+    		}
+    	}
+    }
+
+    /**
+     * Merge the groups of the next pending partition.
+     * 
+     * @return an open iterator over its results, or null if the partition
+     *         had to be partitioned again
+     */
+    private DbIterator mergeNextPartition() throws DbException, TransactionAbortedException {
+    	SpillFile f = pending.pop();
+    	int depth = pendingDepths.pop() + 1;
+    	PartialAggregator agtor = newAggregator();
+    	SpillFile[] parts = null;
+    	DbIterator it = f.iterator();
+    	it.open();
+    	while (it.hasNext()) {
+    		agtor.mergePartial(it.next());
+    		if (depth < MAX_DEPTH && overBudget(agtor)) {
+    			parts = spill(agtor, parts, depth);
+    			agtor = newAggregator();
+    		}
+    	}
+    	it.close();
+    	f.delete();
+    	if (parts != null) {
+    		queue(spill(agtor, parts, depth), depth);
+    		return null;
+    	}
+    	DbIterator results = agtor.iterator();
+    	results.open();
+    	return results;
+    }
+
+    /** Delete the spill files of partitions not merged yet. */
+    private void clearSpill() {
+    	if (pending != null) {
+    		for (SpillFile f : pending) {
+    			f.delete();
+    		}
+    	}
+    	pending = new ArrayDeque<SpillFile>();
+    	pendingDepths = new ArrayDeque<Integer>();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. If there are group by fields, then the first
+     * fields are the fields by which we are grouping, and the others are the
+     * results of computing the aggregates, If there is no group by field, then
+     * the result tuple should contain one field per aggregate. Should return
+     * null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
     	// some code goes here
-    	if (this.DbItor.hasNext()) {
-    		return this.DbItor.next();
+    	while (true) {
+    		if (this.DbItor != null && this.DbItor.hasNext()) {
+    			return this.DbItor.next();
+    		}
+    		if (pending.isEmpty()) {
+    			return null;
+    		}
+    		if (this.DbItor != null) {
+    			this.DbItor.close();
+    		}
+    		this.DbItor = mergeNextPartition();
     	}
-    	return null;
     }
 
+    /**
+     * Restarts the aggregate. If groups were spilled, the merged results are
+     * not kept, so the child is aggregated again.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
     	// some code goes here
-    	DbItor.rewind();
+    	if (spillCount == 0) {
+    		DbItor.rewind();
+    		return;
+    	}
+    	if (this.DbItor != null) {
+    		this.DbItor.close();
+    	}
+    	spillCount = 0;
+    	aggregateChild();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate. It has the group by fields, if
+     * any, followed by one aggregate value column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -153,19 +386,29 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
     	// some code goes here
-    	String agName =this.aop.toString() + this.child.getTupleDesc().getFieldName(this.afield);
-    	if (this.gfield == Aggregator.NO_GROUPING) {
-    		return new TupleDesc(new Type[] {Type.INT_TYPE}, new String[] {agName});
-    	} else {
-    		return new TupleDesc(new Type[] {this.child.getTupleDesc().getFieldType(this.gfield),Type.INT_TYPE},
-        			new String[] {this.child.getTupleDesc().getFieldName(this.gfield),agName});
-    	}   			
+    	TupleDesc childTd = this.child.getTupleDesc();
+    	int n = this.gfields.length;
+    	Type[] types = new Type[n + this.afields.length];
+    	String[] names = new String[types.length];
+    	for (int i = 0; i < n; i++) {
+    		types[i] = childTd.getFieldType(this.gfields[i]);
+    		names[i] = childTd.getFieldName(this.gfields[i]);
+    	}
+    	for (int i = 0; i < this.afields.length; i++) {
+    		types[n + i] = Type.INT_TYPE;
+    		names[n + i] = this.aops[i].toString() + childTd.getFieldName(this.afields[i]);
+    	}
+    	return new TupleDesc(types, names);
     }
 
     public void close() {
     	// some code goes here
     	super.close();
-    	this.DbItor.close();
+    	if (this.DbItor != null) {
+    		this.DbItor.close();
+    		this.DbItor = null;
+    	}
+    	clearSpill();
     }
 
     @Override
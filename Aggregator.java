@@ -76,6 +76,18 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the groups of another aggregator into this one, as if the tuples
+     * merged into other had been merged here. Partial states are combined,
+     * not results, so an AVG stays exact: its sum and count are added up
+     * separately.
+     *
+     * @param other an aggregator of the same class, built with the same
+     *            constructor arguments; it is left unchanged
+     * @throws IllegalArgumentException if other is of a different class
+     */
+    public void merge(Aggregator other);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
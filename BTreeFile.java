@@ -79,39 +79,35 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
+		FileChannelCache channels = Database.getChannelCache();
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
+			long size = channels.size(f);
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				if (size == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
+				if (size < BTreeRootPtrPage.getPageSize()) {
 					throw new IllegalArgumentException("Unable to read "
 							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
 				}
+				channels.readFully(f, 0, pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				long offset = pageOffset(id.pageNumber());
+				if (offset >= size) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
-				if (retval < BufferPool.getPageSize()) {
+				if (offset + BufferPool.getPageSize() > size) {
 					throw new IllegalArgumentException("Unable to read "
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
+				channels.readFully(f, offset, pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -128,17 +124,16 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * @return the byte offset of page pageNo (a non-root-pointer page) in the file
+	 */
+	private long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long)(pageNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -149,15 +144,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			Database.getChannelCache().writeFully(f, 0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			Database.getChannelCache().writeFully(f, pageOffset(page.getId().pageNumber()), data);
 		}
 	}
 	
@@ -997,13 +988,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				Database.getChannelCache().writeFully(f, 0, emptyRootPtrData);
+				Database.getChannelCache().writeFully(f, emptyRootPtrData.length, emptyLeafData);
 			}
 		}
 
@@ -1059,11 +1047,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				Database.getChannelCache().writeFully(f, pageOffset(numPages() + 1), emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1094,10 +1079,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		Database.getChannelCache().writeFully(f, pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
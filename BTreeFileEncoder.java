@@ -107,36 +107,16 @@ public class BTreeFileEncoder {
 
 	}
 
-	/** 
-	 * comparator to sort Tuples by key field
+	/**
+	 * Sort tuples on their key field, comparing the binary {@link SortKey}s
+	 * of the keys rather than the key Fields.
+	 * 
+	 * @param tuples - the tuples to sort, in place
+	 * @param keyField - the index of the field the tuples are keyed on
 	 */
-	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
-
-		/** 
-		 * Construct a TupleComparator
-		 * 
-		 * @param keyField - the index of the field the tuples are keyed on
-		 */
-		public TupleComparator(int keyField) {
-			this.keyField = keyField;
-		}
-
-		/**
-		 * Compare two tuples based on their key field
-		 * 
-		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
-		 */
-		public int compare(Tuple t1, Tuple t2) {
-			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
-				cmp = -1;
-			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
-				cmp = 1;
-			}
-			return cmp;
-		}
+	static void sortOnKey(List<Tuple> tuples, int keyField) {
+		if (!tuples.isEmpty())
+			new SortKey(tuples.get(0).getTupleDesc(), keyField, true).sort(tuples);
 	}
 
 	/**
@@ -213,7 +193,7 @@ public class BTreeFileEncoder {
 			tuples.add(tup);
 		}
 		it.close();
-		Collections.sort(tuples, new TupleComparator(keyField));
+		sortOnKey(tuples, keyField);
 
 		// add the tuples to B+ tree file
 		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
@@ -554,7 +534,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		sortOnKey(tuples, keyField);
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
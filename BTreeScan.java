@@ -17,6 +17,7 @@ public class BTreeScan implements DbIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int keyField = -1;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -60,6 +61,22 @@ public class BTreeScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the index predicate the scan matches, or null if it returns
+	 *       all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the index of the field the tuples come out sorted on, which is
+	 *       the key field of the B+ tree, or -1 if the table is not a B+ tree
+	 */
+	public int keyField() {
+		return this.keyField;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -76,6 +93,8 @@ public class BTreeScan implements DbIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		this.keyField = f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
@@ -0,0 +1,146 @@
+package simpledb;
+
+/**
+ * BatchFilter is the batch mode counterpart of {@link Filter}. It evaluates
+ * its predicate over a whole column at a time and narrows the selection
+ * vector of the batch rather than copying the rows that pass. Comparisons of
+ * INT_TYPE fields run as a plain loop over the int column, with the choice
+ * of operator made once per batch.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate p;
+    private BatchIterator child;
+
+    /**
+     * @param p
+     *            The predicate to filter rows with
+     * @param child
+     *            The child operator
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public void close() {
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next batch of the child with the rows that fail the
+     * predicate deselected. Batches left with no selected rows are skipped.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch b;
+        while ((b = child.nextBatch()) != null) {
+            filter(b);
+            if (b.numSelected() > 0)
+                return b;
+        }
+        return null;
+    }
+
+    private void filter(TupleBatch b) {
+        int field = p.getField();
+        if (b.getTupleDesc().getFieldType(field) == Type.INT_TYPE
+                && p.getOperand() instanceof IntField)
+            filterInt(b, b.intColumn(field), ((IntField) p.getOperand()).getValue());
+        else
+            filterFields(b, field);
+    }
+
+    /** Narrow the selection of b to the rows whose value in col passes. */
+    private void filterInt(TupleBatch b, int[] col, int v) {
+        int n = b.numSelected();
+        int[] out = b.selectionBuffer();
+        int m = 0;
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            for (int k = 0; k < n; k++) {
+                int row = b.selected(k);
+                if (col[row] == v)
+                    out[m++] = row;
+            }
+            break;
+        case NOT_EQUALS:
+            for (int k = 0; k < n; k++) {
+                int row = b.selected(k);
+                if (col[row] != v)
+                    out[m++] = row;
+            }
+            break;
+        case GREATER_THAN:
+            for (int k = 0; k < n; k++) {
+                int row = b.selected(k);
+                if (col[row] > v)
+                    out[m++] = row;
+            }
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int k = 0; k < n; k++) {
+                int row = b.selected(k);
+                if (col[row] >= v)
+                    out[m++] = row;
+            }
+            break;
+        case LESS_THAN:
+            for (int k = 0; k < n; k++) {
+                int row = b.selected(k);
+                if (col[row] < v)
+                    out[m++] = row;
+            }
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int k = 0; k < n; k++) {
+                int row = b.selected(k);
+                if (col[row] <= v)
+                    out[m++] = row;
+            }
+            break;
+        }
+        b.setSelection(m);
+    }
+
+    /** Narrow the selection of b using Field.compare, for non-int fields. */
+    private void filterFields(TupleBatch b, int field) {
+        int n = b.numSelected();
+        int[] out = b.selectionBuffer();
+        int m = 0;
+        for (int k = 0; k < n; k++) {
+            int row = b.selected(k);
+            if (b.getField(row, field).compare(p.getOp(), p.getOperand()))
+                out[m++] = row;
+        }
+        b.setSelection(m);
+    }
+
+    /** @return the child of this operator */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    /** Replace the child of this operator. */
+    public void setChild(BatchIterator child) {
+        this.child = child;
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the interface of operators that run in batch mode: rather
+ * than one Tuple at a time, they pass {@link TupleBatch}es of up to about
+ * {@link TupleBatch#DEFAULT_SIZE} rows, so the per-row cost of virtual calls
+ * and Field objects is paid once per batch. Batch and row operators can be
+ * mixed in one plan through {@link BatchToRow} and {@link RowToBatch}.
+ * <p>
+ * As with DbIterator, none of the methods other than getTupleDesc work
+ * before the iterator is opened or after it is closed.
+ */
+public interface BatchIterator extends Serializable {
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    public void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch of rows. A batch may have no selected rows even
+     * if more batches follow. The batch belongs to this iterator and is only
+     * valid until the next call to it.
+     *
+     * @return the next batch, or null if the iteration is finished
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Resets the iterator to the start.
+     * @throws DbException when rewind is unsupported.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the TupleDesc of the rows of the batches this iterator returns
+     */
+    public TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    public void close();
+}
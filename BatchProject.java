@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchProject is the batch mode counterpart of {@link Project}. It copies
+ * no data: each batch it returns is a view of the chosen columns of the
+ * child's batch.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private final TupleDesc td;
+    private final int[] outFieldIds;
+    private transient TupleBatch view;
+
+    /**
+     * @param fieldList
+     *            The ids of the fields child's tupleDesc to project out
+     * @param types
+     *            the types of the fields in the final projection
+     * @param child
+     *            The child operator
+     */
+    public BatchProject(ArrayList<Integer> fieldList, Type[] types, BatchIterator child) {
+        this.child = child;
+        outFieldIds = new int[fieldList.size()];
+        String[] fieldAr = new String[fieldList.size()];
+        TupleDesc childtd = child.getTupleDesc();
+        for (int i = 0; i < fieldAr.length; i++) {
+            outFieldIds[i] = fieldList.get(i);
+            fieldAr[i] = childtd.getFieldName(outFieldIds[i]);
+        }
+        td = new TupleDesc(types, fieldAr);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public void close() {
+        child.close();
+        view = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch b = child.nextBatch();
+        if (b == null)
+            return null;
+        view = b.project(view, td, outFieldIds);
+        return view;
+    }
+
+    /** @return the child of this operator */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    /** Replace the child of this operator. */
+    public void setChild(BatchIterator child) {
+        this.child = child;
+    }
+}
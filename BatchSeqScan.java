@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchSeqScan is the batch mode counterpart of {@link SeqScan}. On a
+ * HeapFile it copies the fields of each used slot straight from the page
+ * into the column arrays of its batch, keeping the page pinned while it does
+ * so; other DbFiles are read through their DbFileIterator.
+ */
+public class BatchSeqScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final int batchSize;
+    private final TupleDesc td;
+
+    private transient TupleBatch batch;
+    private boolean open = false;
+    // state of a HeapFile scan
+    private int whichPage;
+    private HeapPageId pinned;
+    private transient HeapPage.Cursor cursor;
+    // state of any other scan
+    private DbFileIterator fileIterator;
+
+    /**
+     * Creates a batch mode scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table
+     * @param batchSize
+     *            the maximum number of rows per batch
+     */
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias, int batchSize) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.batchSize = batchSize;
+        this.td = SeqScan.aliasedTupleDesc(tableid, tableAlias);
+    }
+
+    public BatchSeqScan(TransactionId tid, int tableid) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid), TupleBatch.DEFAULT_SIZE);
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /** @return the name of the table this operator scans */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the TupleDesc of the table with field names prefixed by the
+     *         alias, like that of a {@link SeqScan}
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc(), batchSize);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            unpin();
+            whichPage = -1;
+            cursor = null;
+        } else {
+            fileIterator = file.iterator(tid);
+            fileIterator.open();
+        }
+        open = true;
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("Operator not yet open");
+        batch.clear();
+        if (fileIterator != null) {
+            while (!batch.isFull() && fileIterator.hasNext())
+                batch.append(fileIterator.next());
+        } else {
+            fillFromHeapFile();
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
+    /** Fill the batch from the current page, moving on to later pages as needed. */
+    private void fillFromHeapFile() throws DbException, TransactionAbortedException {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = batch.getTupleDesc();
+        int numFields = td.numFields();
+        Object[] cols = new Object[numFields];
+        for (int i = 0; i < numFields; i++)
+            cols[i] = td.getFieldType(i) == Type.INT_TYPE ? batch.intColumn(i) : batch.stringColumn(i);
+
+        while (!batch.isFull()) {
+            if (cursor == null || !cursor.next()) {
+                if (whichPage + 1 >= file.numPages())
+                    return;
+                whichPage++;
+                HeapPageId pid = new HeapPageId(tableid, whichPage);
+                HeapPage page = (HeapPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+                unpin();
+                pinned = pid;
+                if (cursor == null)
+                    cursor = page.cursor();
+                else
+                    cursor.reset(page);
+                continue;
+            }
+            int row = batch.append(pinned, cursor.slot());
+            for (int i = 0; i < numFields; i++) {
+                if (cols[i] instanceof int[])
+                    ((int[]) cols[i])[row] = cursor.getInt(i);
+                else
+                    ((String[]) cols[i])[row] = ((StringField) cursor.getField(i)).getValue();
+            }
+        }
+    }
+
+    private void unpin() {
+        if (pinned != null) {
+            Database.getBufferPool().unpinPage(pinned);
+            pinned = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("Operator not yet open");
+        if (fileIterator != null) {
+            fileIterator.rewind();
+        } else {
+            unpin();
+            whichPage = -1;
+            cursor = null;
+        }
+    }
+
+    public void close() {
+        if (fileIterator != null) {
+            fileIterator.close();
+            fileIterator = null;
+        }
+        unpin();
+        cursor = null;
+        open = false;
+    }
+}
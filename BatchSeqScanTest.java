@@ -0,0 +1,34 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Checks that a BatchSeqScan describes its output exactly as a SeqScan of
+ * the same table and alias does, so that BatchToRow over it can stand in
+ * for the SeqScan in a plan that looks fields up by alias-qualified name.
+ */
+public class BatchSeqScanTest {
+
+    public static void main(String[] argv) throws Exception {
+        File f = File.createTempFile("batchseqscan", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.openHeapFile(3, "c", f);
+        TransactionId tid = new TransactionId();
+
+        TupleDesc row = new SeqScan(tid, hf.getId(), "t").getTupleDesc();
+        TupleDesc batch = new BatchToRow(new BatchSeqScan(tid, hf.getId(), "t",
+                TupleBatch.DEFAULT_SIZE)).getTupleDesc();
+
+        if (row.numFields() != batch.numFields())
+            throw new RuntimeException("expected " + row.numFields() + " fields, got " + batch.numFields());
+        for (int i = 0; i < row.numFields(); i++) {
+            if (row.getFieldType(i) != batch.getFieldType(i)
+                    || !row.getFieldName(i).equals(batch.getFieldName(i)))
+                throw new RuntimeException("field " + i + ": expected " + row.getFieldName(i)
+                        + ", got " + batch.getFieldName(i));
+            if (batch.fieldNameToIndex(row.getFieldName(i)) != i)
+                throw new RuntimeException("cannot look up " + row.getFieldName(i));
+        }
+        System.out.println("BatchSeqScanTest passed");
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchToRow lets a batch mode subtree feed a row operator: it returns the
+ * selected rows of its child's batches one Tuple at a time.
+ */
+public class BatchToRow extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private transient TupleBatch batch;
+    private int k;
+
+    /**
+     * @param child
+     *            The batch mode operator to read rows from
+     */
+    public BatchToRow(BatchIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (batch == null || k >= batch.numSelected()) {
+            batch = child.nextBatch();
+            if (batch == null)
+                return null;
+            k = 0;
+        }
+        return batch.getTuple(batch.selected(k++));
+    }
+
+    /** @return the batch mode child of this operator */
+    public BatchIterator getBatchChild() {
+        return child;
+    }
+
+    /**
+     * BatchToRow has no row mode children; its input is
+     * {@link #getBatchChild}.
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        // no row mode children
+    }
+}
@@ -0,0 +1,97 @@
+package simpledb;
+
+/**
+ * BloomFilter is a compact, approximate set of field values. It can say for
+ * certain that a value was never added, but may wrongly claim that a value
+ * was added, with a probability chosen when the filter is created.
+ * <p>
+ * {@link HashEquiJoin} builds one over the keys of its build side and pushes
+ * it down to its probe side, so that tuples that cannot join are dropped as
+ * the table is scanned. Values are identified by their hash codes; since the
+ * hash code of an IntField is its value, an INT_TYPE field can be tested
+ * straight from its int with {@link #mightContain(int)}.
+ */
+public class BloomFilter {
+
+    /** Largest number of bits a filter may use. */
+    private static final int MAX_BITS = 1 << 28;
+
+    private final long[] bits;
+    private final int mask;
+    private final int numHashes;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param expectedValues the number of values that will be added
+     * @param falsePositiveRate the desired probability that a value that
+     *            was not added is reported as present, between 0 and 1
+     */
+    public BloomFilter(long expectedValues, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("false positive rate must be between 0 and 1");
+        long n = Math.max(1, expectedValues);
+        double optimal = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int m = 64;
+        while (m < optimal && m < MAX_BITS)
+            m <<= 1;
+        this.bits = new long[m >>> 6];
+        this.mask = m - 1;
+        this.numHashes = (int) Math.max(1, Math.min(16, Math.round((double) m / n * Math.log(2))));
+    }
+
+    /** Add f to the set. */
+    public void add(Field f) {
+        add(f.hashCode());
+    }
+
+    /** Add the value with the given hash code to the set. */
+    public void add(int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /** @return false if f was certainly never added */
+    public boolean mightContain(Field f) {
+        return mightContain(f.hashCode());
+    }
+
+    /** @return false if no value with the given hash code was ever added */
+    public boolean mightContain(int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the number of bits of the filter */
+    public int numBits() {
+        return mask + 1;
+    }
+
+    /** @return the number of bits set for each value */
+    public int numHashes() {
+        return numHashes;
+    }
+
+    /** murmur3 64-bit finalizer, spreading a hash code over 64 bits */
+    private static long mix(int hash) {
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
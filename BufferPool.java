@@ -2,8 +2,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Iterator;
 
 /**
@@ -14,6 +19,19 @@ import java.util.Iterator;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Resident pages live in a concurrent page table, so lookups that hit in the
+ * pool take no latch at all. Misses are serialized per page through a small
+ * array of striped load latches, and the eviction latch is only held while a
+ * frame is handed over. Each frame carries a pin count; pinned frames (see
+ * {@link #pinPage}) are never chosen for eviction.
+ * <p>
+ * Page locks are taken through a {@link LockManager} under strict two-phase
+ * locking: they are held until {@link #transactionComplete} unless released
+ * early with {@link #releasePage}.
+ * <p>
+ * Scans may ask for pages to be read ahead with {@link #prefetchPage}; those
+ * reads run on a background thread and take neither locks nor pins.
  * 
  * @Threadsafe, all fields are final
  */
@@ -28,20 +46,132 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
+    /** Number of latches misses are striped over. */
+    private static final int LOAD_STRIPES = 64;
+
+    /** Number of background threads serving read-ahead requests. */
+    private static final int PREFETCH_THREADS = 2;
+
+    private static final ExecutorService prefetcher = Executors.newFixedThreadPool(PREFETCH_THREADS,
+    		new ThreadFactory() {
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "simpledb-prefetch");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+
     private final int numPages;
-    private final HashMap<PageId, Page> pageMap;
-    //private final HashMap<PageId, Integer> recentlyUsed;
-    private PageId usedID = null;
+    private final ConcurrentHashMap<PageId, Frame> pageMap;
+    private final ReplacementPolicy policy;
+    private final LockManager lockManager = new LockManager();
+    private final Object[] loadLatches;
+    private final Object evictionLatch = new Object();
+
+    /** Pages with a read-ahead request queued or running. */
+    private final ConcurrentHashMap<PageId, Boolean> prefetching = new ConcurrentHashMap<>();
+    // read-ahead metrics
+    private final AtomicLong prefetchRequests = new AtomicLong();
+    private final AtomicLong prefetchLoads = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWasted = new AtomicLong();
+
+    /**
+     * A buffer pool slot holding one resident page. The pin count is -1 once
+     * the frame has been claimed for eviction; pinning only succeeds on
+     * frames whose count is not negative.
+     */
+    private static class Frame {
+        volatile Page page;
+        final AtomicInteger pins = new AtomicInteger(0);
+        /** Set while a read-ahead page has not been asked for yet. */
+        final AtomicBoolean prefetched = new AtomicBoolean(false);
+
+        Frame(Page page) {
+            this.page = page;
+        }
+
+        boolean pin() {
+            while (true) {
+                int n = pins.get();
+                if (n < 0)
+                    return false;
+                if (pins.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Only unpinned, clean pages may be evicted, since we run in NO STEAL
+     * mode. Accepting a page claims its frame, so a concurrent pin cannot
+     * slip in between the check and the eviction.
+     */
+    private final ReplacementPolicy.VictimFilter cleanPages = new ReplacementPolicy.VictimFilter() {
+        public boolean isEvictable(PageId pid) {
+            Frame f = pageMap.get(pid);
+            if (f == null)
+                return true;
+            if (f.page.isDirty() != null || !f.pins.compareAndSet(0, -1))
+                return false;
+            if (f.page.isDirty() != null) {
+                // dirtied while we were claiming it
+                f.pins.set(0);
+                return false;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * replacement policy named by the {@link ReplacementPolicy#POLICY_PROPERTY}
+     * system property ("clock", "lru-k" or "2q"; CLOCK if unset).
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, createPolicy(System.getProperty(ReplacementPolicy.POLICY_PROPERTY), numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy; must be sized for numPages.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         // some code goes here
     	this.numPages = numPages;
-    	pageMap = new HashMap<> ();
+    	this.policy = policy;
+    	pageMap = new ConcurrentHashMap<> ();
+    	loadLatches = new Object[LOAD_STRIPES];
+    	for (int i = 0; i < LOAD_STRIPES; i++) {
+    		loadLatches[i] = new Object();
+    	}
+    }
+
+    /**
+     * Creates one of the built-in replacement policies by name.
+     *
+     * @param name "clock", "lru-k" or "2q" (case insensitive); null means "clock"
+     * @param numPages the capacity of the buffer pool the policy will serve
+     * @throws IllegalArgumentException if name is not a known policy
+     */
+    public static ReplacementPolicy createPolicy(String name, int numPages) {
+        if (name == null || name.equalsIgnoreCase("clock"))
+            return new ClockPolicy(numPages);
+        if (name.equalsIgnoreCase("lru-k") || name.equalsIgnoreCase("lruk"))
+            return new LRUKPolicy(numPages);
+        if (name.equalsIgnoreCase("2q"))
+            return new TwoQueuePolicy(numPages);
+        throw new IllegalArgumentException("Unknown replacement policy " + name);
+    }
+
+    /** @return the replacement policy used by this buffer pool */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
     }
     
     public static int getPageSize() {
@@ -76,20 +206,203 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	// if not in buffer, read from disk
-    	if (pageMap.size() >= numPages) {
-        	evictPage();
-        }
-    	
-    	// if pageMap doesn't contain this page id
-        if (!(pageMap.containsKey(pid))) {
-        	Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        	p.setBeforeImage();
-        	pageMap.put(pid, p);
-        }
+    	lock(tid, pid, perm);
+    	// hit path: no latches, just a page table lookup
+    	Frame f = pageMap.get(pid);
+    	if (f != null && f.pins.get() >= 0) {
+    		touch(pid, f);
+    		return f.page;
+    	}
+    	return loadFrame(pid).page;
+    }
 
-        usedID = pid;
-        return pageMap.get(pid);
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so that
+     * it stays resident until a matching call to {@link #unpinPage}. Useful
+     * for iterators that keep working on a page across many calls.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	lock(tid, pid, perm);
+    	while (true) {
+    		Frame f = pageMap.get(pid);
+    		if (f == null) {
+    			f = loadFrame(pid);
+    		} else {
+    			touch(pid, f);
+    		}
+    		if (f.pin()) {
+    			return f.page;
+    		}
+    		// lost a race with eviction; look the page up again
+    	}
+    }
+
+    /**
+     * Drop one pin taken by {@link #pinPage}.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(PageId pid) {
+    	Frame f = pageMap.get(pid);
+    	if (f != null) {
+    		// atomically, so racing unpins cannot go below zero or clear the
+    		// -1 of a frame being evicted
+    		f.pins.getAndUpdate(p -> p > 0 ? p - 1 : p);
+    	}
+    }
+
+    /** @return the number of pins currently held on pid, 0 if not resident */
+    public int getPinCount(PageId pid) {
+    	Frame f = pageMap.get(pid);
+    	return f == null ? 0 : Math.max(0, f.pins.get());
+    }
+
+    /**
+     * Ask for pid to be read into the pool in the background, so that a scan
+     * finds it resident when it gets there. The read takes no lock and no
+     * pin on behalf of any transaction, and is silently dropped if the page
+     * is already resident or cannot be read or cached right now.
+     *
+     * @param pid the ID of the page to read ahead
+     */
+    public void prefetchPage(final PageId pid) {
+    	if (pageMap.containsKey(pid) || prefetching.putIfAbsent(pid, Boolean.TRUE) != null) {
+    		return;
+    	}
+    	prefetchRequests.incrementAndGet();
+    	prefetcher.execute(new Runnable() {
+    		public void run() {
+    			// a demand read of pid while we were queued cancels us
+    			if (prefetching.remove(pid) == null || pageMap.containsKey(pid)) {
+    				return;
+    			}
+    			try {
+    				loadFrame(pid, true);
+    			} catch (DbException | RuntimeException e) {
+    				// read-ahead is only a hint; the scan will read the page itself
+    			}
+    		}
+    	});
+    }
+
+    /** @return the number of read-ahead requests accepted */
+    public long getPrefetchRequests() {
+    	return prefetchRequests.get();
+    }
+
+    /** @return the number of pages actually read by read-ahead */
+    public long getPrefetchLoads() {
+    	return prefetchLoads.get();
+    }
+
+    /** @return the number of read-ahead pages that were later asked for */
+    public long getPrefetchHits() {
+    	return prefetchHits.get();
+    }
+
+    /** @return the number of read-ahead pages evicted before anyone used them */
+    public long getPrefetchWasted() {
+    	return prefetchWasted.get();
+    }
+
+    /** @return the fraction of read-ahead pages that were used, or 0 if none were read */
+    public double getPrefetchHitRate() {
+    	long loads = prefetchLoads.get();
+    	return loads == 0 ? 0.0 : (double) prefetchHits.get() / loads;
+    }
+
+    /** @return the number of read-ahead requests queued right now */
+    public int getPrefetchesInFlight() {
+    	return prefetching.size();
+    }
+
+    /** Record a hit on a resident frame. */
+    private void touch(PageId pid, Frame f) {
+    	if (f.prefetched.get() && f.prefetched.compareAndSet(true, false)) {
+    		prefetchHits.incrementAndGet();
+    	}
+    	policy.pageAccessed(pid);
+    }
+
+    /** @return the lock manager guarding this pool's pages */
+    public LockManager getLockManager() {
+    	return lockManager;
+    }
+
+    private void lock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+    	// pages read outside of any transaction are not locked
+    	if (tid != null) {
+    		lockManager.acquire(tid, pid, perm);
+    	}
+    }
+
+    /**
+     * Miss path of getPage: read pid from disk and install it, unless another
+     * thread beat us to it while we waited for the page's load latch.
+     */
+    private Frame loadFrame(PageId pid) throws DbException {
+    	return loadFrame(pid, false);
+    }
+
+    private Frame loadFrame(PageId pid, boolean prefetch) throws DbException {
+    	synchronized (loadLatches[(pid.hashCode() & 0x7fffffff) % LOAD_STRIPES]) {
+    		Frame f = pageMap.get(pid);
+    		if (f != null && f.pins.get() >= 0) {
+    			if (!prefetch) {
+    				touch(pid, f);
+    			}
+    			return f;
+    		}
+    		// if not in buffer, read from disk
+    		Page p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    		p.setBeforeImage();
+    		f = cachePage(p, prefetch);
+    		if (prefetch) {
+    			prefetchLoads.incrementAndGet();
+    		} else if (!prefetching.isEmpty()) {
+    			// the scan got here first; a queued read-ahead of pid is stale
+    			prefetching.remove(pid);
+    		}
+    		return f;
+    	}
+    }
+
+    /**
+     * Makes p the resident copy of its page, evicting another page first if
+     * p is new to the pool and the pool is full.
+     */
+    private Frame cachePage(Page p) throws DbException {
+    	return cachePage(p, false);
+    }
+
+    /**
+     * As {@link #cachePage(Page)}; a newly admitted frame is flagged as read
+     * ahead if prefetched is set.
+     */
+    private Frame cachePage(Page p, boolean prefetched) throws DbException {
+    	PageId pid = p.getId();
+    	synchronized (evictionLatch) {
+    		Frame f = pageMap.get(pid);
+    		if (f != null && f.pins.get() >= 0) {
+    			f.page = p;
+    			policy.pageAccessed(pid);
+    			return f;
+    		}
+    		while (pageMap.size() >= numPages) {
+    			evictPage();
+    		}
+    		f = new Frame(p);
+    		f.prefetched.set(prefetched);
+    		pageMap.put(pid, f);
+    		policy.pageAdmitted(pid);
+    		return f;
+    	}
     }
 
     /**
@@ -104,6 +417,12 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+    	// never drop the lock on a page tid has already modified
+    	Frame f = pageMap.get(pid);
+    	if (tid == null || (f != null && tid.equals(f.page.isDirty()))) {
+    		return;
+    	}
+    	lockManager.release(tid, pid);
     }
 
     /**
@@ -114,13 +433,14 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
@@ -134,6 +454,21 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	try {
+    		if (commit) {
+    			flushPages(tid);
+    		} else {
+    			// drop our changes; the next reader reloads the page from disk
+    			for (PageId pid : lockManager.getLockedPages(tid)) {
+    				Frame f = pageMap.get(pid);
+    				if (f != null && tid.equals(f.page.isDirty())) {
+    					discardPage(pid);
+    				}
+    			}
+    		}
+    	} finally {
+    		lockManager.releaseAll(tid);
+    	}
     }
 
     
@@ -163,7 +498,7 @@ public class BufferPool {
     		Page p = itor.next();
     		p.markDirty(true, tid);
     		// put page id and page into pageMap
-    		pageMap.put(p.getId(), p);
+    		cachePage(p);
     	}
     }
 
@@ -190,7 +525,7 @@ public class BufferPool {
     	while (itor.hasNext()) {
     		Page p = itor.next();
     		p.markDirty(true, tid);
-    		pageMap.put(p.getId(), p);
+    		cachePage(p);
     	}
     }
 
@@ -216,10 +551,14 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	pageMap.remove(pid);
+    	synchronized (evictionLatch) {
+    		if (pageMap.remove(pid) != null) {
+    			policy.pageRemoved(pid);
+    		}
+    	}
     }
 
     /**
@@ -229,9 +568,10 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	Page p = pageMap.get(pid);
+    	Frame f = pageMap.get(pid);
     	// check for whether page is null or not
-    	if (p != null) {
+    	if (f != null) {
+    		Page p = f.page;
 	    	TransactionId tid = p.isDirty();
 	    	// check for transaction id is not null
 	    	if (tid != null) {
@@ -239,7 +579,7 @@ public class BufferPool {
 	    	    Database.getLogFile().force();
 	    	}
 
-    		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pageMap.get(pid));
+    		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
     		
     		//Mark page dirty
         	p.markDirty(false, tid);
@@ -251,27 +591,36 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+    	for (PageId pid : lockManager.getLockedPages(tid)) {
+    		Frame f = pageMap.get(pid);
+    		if (f == null) {
+    			continue;
+    		}
+    		if (tid.equals(f.page.isDirty())) {
+    			flushPage(pid);
+    		}
+    		// later aborts roll back to the committed state
+    		f.page.setBeforeImage();
+    	}
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-    	// update current usedId to evictPid
-    	PageId evictPid = usedID;
-    	Iterator<PageId> itor = pageMap.keySet().iterator();
-    	// iterate for all evictPid
-		while (itor.hasNext() && (pageMap.get(evictPid).isDirty() != null)) {
-			evictPid = itor.next();
-		}
-		
-		if (pageMap.get(evictPid).isDirty() != null) {
-			throw new DbException("Cannot evict a page because all pages are dirty.");
+    	// callers hold evictionLatch; the policy only hands back clean,
+    	// unpinned pages, so nothing needs flushing
+    	PageId evictPid = policy.chooseVictim(cleanPages);
+		if (evictPid == null) {
+			throw new DbException("Cannot evict a page because all pages are dirty or pinned.");
 		}
 
-        this.discardPage(evictPid);
+		Frame f = pageMap.remove(evictPid);
+		if (f != null && f.prefetched.get()) {
+			prefetchWasted.incrementAndGet();
+		}
     }
 }
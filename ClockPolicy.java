@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a fixed ring of
+ * frames, each with a reference bit that is set on every hit. The clock hand
+ * sweeps the ring, clearing reference bits, and evicts the first evictable
+ * page whose bit is already clear.
+ * <p>
+ * Hits only set a bit, and each sweep step is constant work; a victim is
+ * found after at most two full turns of the hand.
+ * <p>
+ * {@link #pageAccessed} takes no latch, so BufferPool hits never contend on
+ * the policy; a bit set on a frame that is being recycled concurrently only
+ * gives the new page one extra chance.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final PageId[] frames;
+    private final AtomicIntegerArray referenced;
+    private final ConcurrentHashMap<PageId, Integer> frameOf;
+    private final int[] freeFrames;
+    private int numFree;
+    private int hand = 0;
+
+    /**
+     * Create a CLOCK policy for a buffer pool with the given capacity.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public ClockPolicy(int numPages) {
+        frames = new PageId[numPages];
+        referenced = new AtomicIntegerArray(numPages);
+        frameOf = new ConcurrentHashMap<PageId, Integer>();
+        freeFrames = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            freeFrames[i] = numPages - 1 - i;
+        numFree = numPages;
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame, 1);
+            return;
+        }
+        if (numFree == 0)
+            throw new IllegalStateException("no free frame for page " + pid);
+        int f = freeFrames[--numFree];
+        frames[f] = pid;
+        referenced.set(f, 1);
+        frameOf.put(pid, f);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            referenced.set(frame, 1);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null)
+            release(frame);
+    }
+
+    public synchronized PageId chooseVictim(VictimFilter filter) {
+        // two full turns: the first may only clear reference bits
+        for (int step = 0; step < 2 * frames.length; step++) {
+            int f = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[f];
+            if (pid == null)
+                continue;
+            if (referenced.getAndSet(f, 0) != 0)
+                continue;
+            if (filter.isEvictable(pid)) {
+                frameOf.remove(pid);
+                release(f);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void release(int f) {
+        frames[f] = null;
+        referenced.set(f, 0);
+        freeFrames[numFree++] = f;
+    }
+}
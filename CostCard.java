@@ -11,4 +11,6 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public Vector<LogicalJoinNode> plan;
+    /** The algorithm picked for the last join of plan, or null for a subquery join */
+    public JoinChoice choice;
 }
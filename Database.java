@@ -17,12 +17,14 @@ public class Database {
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final FileChannelCache _channels;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
+        _channels = new FileChannelCache();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -45,6 +47,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the open file handles shared by the tables of the static Database instance */
+    public static FileChannelCache getChannelCache() {
+        return _instance.get()._channels;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -55,11 +62,23 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that uses the specified replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +94,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._channels.closeAll();
     }
 
 }
@@ -0,0 +1,253 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * FileChannelCache keeps a bounded set of open FileChannels, shared by all
+ * the DbFiles of a Database, so that page reads and writes do not have to
+ * open and close the underlying file every time.
+ * <p>
+ * Reads and writes are positional, so any number of threads can use the same
+ * channel concurrently. When more than the configured number of files are in
+ * use, the least recently used channel is closed; a channel that is evicted
+ * while an I/O call is still using it is closed when that call finishes.
+ * <p>
+ * A file is opened read-only until it is first written to, when its channel
+ * is replaced by one opened for writing, so files that cannot be written can
+ * still be read. Only writes create a file that does not exist; every other
+ * call on a missing file fails with an IOException.
+ *
+ * @see Database#getChannelCache
+ * @Threadsafe
+ */
+public class FileChannelCache {
+
+    /** Default number of files kept open at once. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static class Handle {
+        final FileChannel channel;
+        final boolean writable;
+        int users = 0;
+        boolean evicted = false;
+
+        Handle(FileChannel channel, boolean writable) {
+            this.channel = channel;
+            this.writable = writable;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<File, Handle> open = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+
+    public FileChannelCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of channels kept open while idle
+     */
+    public FileChannelCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Read exactly dst.length bytes of f, starting at pos, into dst.
+     *
+     * @throws IOException if the file ends before dst is filled
+     */
+    public void readFully(File f, long pos, byte[] dst) throws IOException {
+        readFully(f, pos, ByteBuffer.wrap(dst));
+    }
+
+    /**
+     * Read from f, starting at pos, until dst has no bytes remaining.
+     *
+     * @throws IOException if the file ends before dst is filled
+     */
+    public void readFully(File f, long pos, ByteBuffer dst) throws IOException {
+        Handle h = acquire(f, false);
+        try {
+            while (dst.hasRemaining()) {
+                int n = h.channel.read(dst, pos);
+                if (n < 0)
+                    throw new IOException("Read past end of " + f);
+                pos += n;
+            }
+        } finally {
+            release(h);
+        }
+    }
+
+    /**
+     * Write all of src to f, starting at pos.
+     */
+    public void writeFully(File f, long pos, byte[] src) throws IOException {
+        writeFully(f, pos, ByteBuffer.wrap(src));
+    }
+
+    /**
+     * Write the remaining bytes of src to f, starting at pos. f is created
+     * if it does not exist.
+     */
+    public void writeFully(File f, long pos, ByteBuffer src) throws IOException {
+        Handle h = acquire(f, true);
+        try {
+            while (src.hasRemaining())
+                pos += h.channel.write(src, pos);
+        } finally {
+            release(h);
+        }
+    }
+
+    /** @return the current size of f in bytes */
+    public long size(File f) throws IOException {
+        Handle h = acquire(f, false);
+        try {
+            return h.channel.size();
+        } finally {
+            release(h);
+        }
+    }
+
+    /**
+     * Map the first length bytes of f into memory, read-only. The mapping
+     * stays valid after the channel is closed and reflects later writes made
+     * through this cache.
+     */
+    public MappedByteBuffer map(File f, long length) throws IOException {
+        Handle h = acquire(f, false);
+        try {
+            return h.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            release(h);
+        }
+    }
+
+    /**
+     * Force any writes to f out to the storage device.
+     */
+    public void force(File f) throws IOException {
+        Handle h = acquire(f, false);
+        try {
+            h.channel.force(false);
+        } finally {
+            release(h);
+        }
+    }
+
+    /** Close the channel of f, if it is open. */
+    public void close(File f) {
+        Handle h;
+        synchronized (this) {
+            h = open.remove(f.getAbsoluteFile());
+            if (h == null)
+                return;
+            h.evicted = true;
+            if (h.users > 0)
+                return;
+        }
+        closeQuietly(h);
+    }
+
+    /** Close every open channel. */
+    public void closeAll() {
+        ArrayList<Handle> idle = new ArrayList<Handle>();
+        synchronized (this) {
+            for (Handle h : open.values()) {
+                h.evicted = true;
+                if (h.users == 0)
+                    idle.add(h);
+            }
+            open.clear();
+        }
+        for (Handle h : idle)
+            closeQuietly(h);
+    }
+
+    /**
+     * @param write true for a channel f can be written through, which
+     *        creates f if it does not exist; otherwise the channel may be
+     *        read-only and a missing file is an error
+     */
+    private Handle acquire(File f, boolean write) throws IOException {
+        File key = f.getAbsoluteFile();
+        synchronized (this) {
+            Handle h = open.get(key);
+            if (h != null && (h.writable || !write)) {
+                h.users++;
+                return h;
+            }
+        }
+
+        // open outside the lock, so a slow open does not hold up other files
+        Handle fresh = new Handle(write
+                ? FileChannel.open(key.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                : FileChannel.open(key.toPath(), StandardOpenOption.READ), write);
+        ArrayList<Handle> idle = new ArrayList<Handle>();
+        Handle h;
+        synchronized (this) {
+            h = open.get(key);
+            if (h != null && (h.writable || !write)) {
+                // another thread opened f meanwhile; use its channel
+                idle.add(fresh);
+            } else {
+                if (h != null) {
+                    // a read-only channel, replaced by the writable one
+                    open.remove(key);
+                    h.evicted = true;
+                    if (h.users == 0)
+                        idle.add(h);
+                }
+                open.put(key, fresh);
+                idle.addAll(trim());
+                h = fresh;
+            }
+            h.users++;
+        }
+        for (Handle old : idle)
+            closeQuietly(old);
+        return h;
+    }
+
+    private void release(Handle h) {
+        synchronized (this) {
+            if (--h.users > 0 || !h.evicted)
+                return;
+        }
+        closeQuietly(h);
+    }
+
+    /** Drop least recently used channels beyond capacity; return the idle ones. */
+    private ArrayList<Handle> trim() {
+        ArrayList<Handle> idle = new ArrayList<Handle>();
+        Iterator<Handle> it = open.values().iterator();
+        while (open.size() > capacity && it.hasNext()) {
+            Handle h = it.next();
+            it.remove();
+            h.evicted = true;
+            if (h.users == 0)
+                idle.add(h);
+        }
+        return idle;
+    }
+
+    private static void closeQuietly(Handle h) {
+        try {
+            h.channel.close();
+        } catch (IOException e) {
+            // nothing useful to do; the channel is unusable either way
+        }
+    }
+}
@@ -10,6 +10,8 @@ public class Filter extends Operator {
     private static final long serialVersionUID = 1L;
     private Predicate p;
     private DbIterator child;
+    private int keyField;
+    private BloomFilter keyFilter;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -31,6 +33,24 @@ public class Filter extends Operator {
         return p;
     }
 
+    /**
+     * Also drop tuples whose field keyField is certainly not in filter; a
+     * null filter turns this off. The test is handed down to the child when
+     * it is a scan or another Filter, so that it runs as early as possible.
+     * 
+     * @see SeqScan#setKeyFilter
+     */
+    public void setKeyFilter(int keyField, BloomFilter filter) {
+    	if (child instanceof SeqScan) {
+    		((SeqScan) child).setKeyFilter(keyField, filter);
+    	} else if (child instanceof Filter) {
+    		((Filter) child).setKeyFilter(keyField, filter);
+    	} else {
+    		this.keyField = keyField;
+    		this.keyFilter = filter;
+    	}
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
     	return child.getTupleDesc();
@@ -68,6 +88,7 @@ public class Filter extends Operator {
         // some code goes here
     	while (child.hasNext()) {
         	Tuple curT = child.next();
+        	if (keyFilter != null && !keyFilter.mightContain(curT.getField(keyField))) continue;
         	if (p.filter(curT)) return curT;
         }
         return null;
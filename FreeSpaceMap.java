@@ -0,0 +1,120 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records how many empty tuple slots each page of a HeapFile
+ * has, so that an insert can go straight to a page with room instead of
+ * fetching every page of the table.
+ * <p>
+ * The map is a hint. In memory it follows every insert and delete made to
+ * buffered pages, including those of transactions that later abort, and
+ * HeapFile corrects an entry whenever it finds a page fuller than the map
+ * claimed. On disk it lives in a sidecar file next to the table, holding one
+ * entry per page that is rewritten whenever that page is written. A missing
+ * or short sidecar is rebuilt from the page headers.
+ *
+ * @see HeapFile#insertTuple
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    /** Identifies a sidecar file, followed by the page size it was built for. */
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 4;
+
+    private final File sidecar;
+    private int[] free = new int[16];
+    private int numPages = 0;
+    /** Pages with at least one empty slot. */
+    private final BitSet hasRoom = new BitSet();
+
+    /**
+     * @param sidecar the file the map is persisted in
+     */
+    public FreeSpaceMap(File sidecar) {
+        this.sidecar = sidecar;
+    }
+
+    /** @return the sidecar file used for the table stored in dataFile */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /** @return the file this map is persisted in */
+    public File getFile() {
+        return sidecar;
+    }
+
+    /**
+     * Read the persisted entries of up to maxPages pages.
+     *
+     * @return the number of pages for which an entry was found; 0 if the
+     *         sidecar is missing or was written for another page size
+     */
+    public synchronized int load(int maxPages) throws IOException {
+        if (!sidecar.exists() || sidecar.length() < HEADER_SIZE)
+            return 0;
+        FileChannelCache channels = Database.getChannelCache();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channels.readFully(sidecar, 0, header);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != BufferPool.getPageSize())
+            return 0;
+        int pages = (int) Math.min(maxPages, (sidecar.length() - HEADER_SIZE) / ENTRY_SIZE);
+        ByteBuffer entries = ByteBuffer.allocate(pages * ENTRY_SIZE);
+        channels.readFully(sidecar, HEADER_SIZE, entries);
+        for (int p = 0; p < pages; p++)
+            setFreeSlots(p, entries.getInt(p * ENTRY_SIZE));
+        return pages;
+    }
+
+    /**
+     * Write the entry of page pageNo to the sidecar, creating the sidecar if
+     * needed.
+     */
+    public void persist(int pageNo, int freeSlots) throws IOException {
+        FileChannelCache channels = Database.getChannelCache();
+        synchronized (this) {
+            if (!sidecar.exists() || channels.size(sidecar) < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(BufferPool.getPageSize()).flip();
+                channels.writeFully(sidecar, 0, header);
+            }
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putInt(0, freeSlots);
+        channels.writeFully(sidecar, HEADER_SIZE + (long) pageNo * ENTRY_SIZE, entry);
+    }
+
+    /** Record that page pageNo has freeSlots empty slots. */
+    public synchronized void setFreeSlots(int pageNo, int freeSlots) {
+        if (pageNo >= free.length)
+            free = Arrays.copyOf(free, Math.max(free.length * 2, pageNo + 1));
+        free[pageNo] = freeSlots;
+        numPages = Math.max(numPages, pageNo + 1);
+        hasRoom.set(pageNo, freeSlots > 0);
+    }
+
+    /** @return the recorded number of empty slots on pageNo, or -1 if unknown */
+    public synchronized int getFreeSlots(int pageNo) {
+        return pageNo < numPages ? free[pageNo] : -1;
+    }
+
+    /** @return the number of pages the map has entries for */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * @return the lowest numbered page believed to have an empty slot, or -1
+     *         if every page is believed to be full
+     */
+    public synchronized int findPageWithRoom() {
+        return hasRoom.nextSetBit(0);
+    }
+}
@@ -4,16 +4,52 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. The left child is the build side: its
+ * tuples are split by a hash of the join field into partitions, each with
+ * its own in-memory hash table. When the tables outgrow the memory budget
+ * the largest resident partition is written out to a {@link SpillFile}, and
+ * from then on that partition's build tuples go straight to disk. Right
+ * tuples that hash to a resident partition are joined at once; those that
+ * hash to a spilled partition are spilled too. Once the right child is
+ * exhausted, each pair of spilled partitions is joined by a nested
+ * HashEquiJoin that partitions again with a different hash function.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
-    private Map<Field,List<Tuple>> map;
-    
+
+    /** Default memory budget for the build side hash tables, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024 * 1024;
+    /** Number of partitions the build side is split into. */
+    private static final int NUM_PARTITIONS = 16;
+    /**
+     * Spilled partitions are re-partitioned at most this many times; past
+     * that, partitions are kept in memory regardless of the budget, since
+     * they are most likely dominated by a single join key.
+     */
+    private static final int MAX_DEPTH = 4;
+    /** Rough per-tuple overhead of the Tuple and Field objects, in bytes. */
+    private static final int TUPLE_OVERHEAD = 64;
+    /** False positive rate of the filter pushed down to the right child. */
+    private static final double KEY_FILTER_FPP = 0.01;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private boolean pushKeyFilter = true;
+    private final int depth;
+
+    private transient ArrayList<Map<Field, List<Tuple>>> partitions;
+    private transient long[] partitionBytes;
+    private transient long residentBytes;
+    private transient SpillFile[] buildSpill;
+    private transient SpillFile[] probeSpill;
+    private transient int nextSpilled;
+    private transient HashEquiJoin spilledJoin;
+    private int spillCount = 0;
+
     private Tuple t1;
     private Tuple t2;
 
@@ -29,11 +65,15 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, 0);
+    }
+
+    private HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int depth) {
         // some code goes here
     	this.p = p;
     	this.child1 = child1;
     	this.child2 = child2;
-    	this.map = new HashMap<Field,List<Tuple>>();
+    	this.depth = depth;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -41,6 +81,52 @@ public class HashEquiJoin extends Operator {
     	return this.p;
     }
 
+    /**
+     * Set the number of bytes the build side hash tables may take before
+     * partitions are spilled to disk. Must be called before the join is
+     * opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return the memory budget of the build side hash tables, in bytes */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set whether the join passes a Bloom filter over the keys of the left
+     * child down to the right child, when that is a SeqScan or a Filter, so
+     * that right tuples that cannot join are dropped as they are scanned.
+     * On by default; must be called before the join is opened.
+     */
+    public void setPushKeyFilter(boolean push) {
+        this.pushKeyFilter = push;
+    }
+
+    /** @return true if the join pushes a filter over its keys to the right child */
+    public boolean getPushKeyFilter() {
+        return pushKeyFilter;
+    }
+
+    /**
+     * @return the number of partitions spilled to disk since this join was
+     *         opened, including those spilled by nested joins
+     */
+    public int getSpillCount() {
+        return spillCount;
+    }
+
+    /**
+     * @return the approximate number of bytes card build side tuples with
+     *         schema td take in the hash tables, for comparison with the
+     *         memory budget
+     */
+    static long estimateBuildBytes(TupleDesc td, long card) {
+        return card * (td.getSize() + TUPLE_OVERHEAD);
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
     	return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
@@ -62,25 +148,162 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         // some code goes here
     	child1.open();
-    	child2.open();
+    	spillCount = 0;
+    	// the right child is opened after the key filter is pushed into it
     	loadMap();
+    	child2.open();
     	super.open();
     }
-    
-    private boolean loadMap() throws DbException, TransactionAbortedException{
-    	int cout = 0;
-    	map.clear();
-    	while(child1.hasNext()) {
+
+    /** @return the partition key belongs to at this join's depth */
+    private int partition(Field key) {
+    	// seeded by depth so nested joins split differently
+    	return partition(key, depth, NUM_PARTITIONS);
+    }
+
+    /**
+     * @return which of numPartitions partitions key belongs to; different
+     *         seeds split the same keys independently
+     */
+    static int partition(Field key, int seed, int numPartitions) {
+    	return partition(key.hashCode(), seed, numPartitions);
+    }
+
+    /** @return which of numPartitions partitions a key with the given hash code belongs to */
+    static int partition(int hash, int seed, int numPartitions) {
+    	// murmur3 finalizer
+    	int h = hash ^ (seed * 0x9e3779b9);
+    	h ^= h >>> 16;
+    	h *= 0x85ebca6b;
+    	h ^= h >>> 13;
+    	h *= 0xc2b2ae35;
+    	h ^= h >>> 16;
+    	return (h & 0x7fffffff) % numPartitions;
+    }
+
+    /** Partition the whole left child, spilling partitions as needed. */
+    private void loadMap() throws DbException, TransactionAbortedException {
+    	clearPartitions();
+    	partitions = new ArrayList<Map<Field, List<Tuple>>>(NUM_PARTITIONS);
+    	for (int i = 0; i < NUM_PARTITIONS; i++) {
+    		partitions.add(new HashMap<Field, List<Tuple>>());
+    	}
+    	partitionBytes = new long[NUM_PARTITIONS];
+    	residentBytes = 0;
+    	buildSpill = new SpillFile[NUM_PARTITIONS];
+    	probeSpill = new SpillFile[NUM_PARTITIONS];
+    	long tupleBytes = child1.getTupleDesc().getSize() + TUPLE_OVERHEAD;
+    	boolean collectKeys = pushKeyFilter && keyFilterTarget() != null;
+    	int[] keyHashes = new int[collectKeys ? 1024 : 0];
+    	int numKeys = 0;
+
+    	while (child1.hasNext()) {
     		t1 = child1.next();
-    		List<Tuple> list = map.get(t1.getField(p.getField1()));
+    		Field key = t1.getField(p.getField1());
+    		if (collectKeys) {
+    			if (numKeys == keyHashes.length) {
+    				keyHashes = Arrays.copyOf(keyHashes, numKeys * 2);
+    			}
+    			keyHashes[numKeys++] = key.hashCode();
+    		}
+    		int part = partition(key);
+    		if (buildSpill[part] != null) {
+    			buildSpill[part].add(t1);
+    			continue;
+    		}
+    		Map<Field, List<Tuple>> map = partitions.get(part);
+    		List<Tuple> list = map.get(key);
     		if (list == null) {
     			list = new ArrayList<Tuple>();
-    			map.put(t1.getField(p.getField1()), list);
+    			map.put(key, list);
     		}
     		list.add(t1);
-    		if (cout++ == 20000) return true;
+    		partitionBytes[part] += tupleBytes;
+    		residentBytes += tupleBytes;
+    		if (residentBytes > memoryBudget && depth < MAX_DEPTH) {
+    			spillLargestPartition();
+    		}
+    	}
+    	t1 = null;
+    	if (collectKeys) {
+    		BloomFilter keys = new BloomFilter(numKeys, KEY_FILTER_FPP);
+    		for (int i = 0; i < numKeys; i++) {
+    			keys.add(keyHashes[i]);
+    		}
+    		setKeyFilter(keys);
+    	}
+    }
+
+    /** @return the right child if a key filter can be pushed into it, or null */
+    private DbIterator keyFilterTarget() {
+    	return child2 instanceof SeqScan || child2 instanceof Filter ? child2 : null;
+    }
+
+    /** Push filter down to the right child; null removes it again. */
+    private void setKeyFilter(BloomFilter filter) {
+    	if (child2 instanceof SeqScan) {
+    		((SeqScan) child2).setKeyFilter(p.getField2(), filter);
+    	} else if (child2 instanceof Filter) {
+    		((Filter) child2).setKeyFilter(p.getField2(), filter);
+    	}
+    }
+
+    private void spillLargestPartition() throws DbException {
+    	int victim = -1;
+    	for (int i = 0; i < NUM_PARTITIONS; i++) {
+    		if (buildSpill[i] == null && (victim < 0 || partitionBytes[i] > partitionBytes[victim])) {
+    			victim = i;
+    		}
+    	}
+    	if (victim < 0) {
+    		return;
+    	}
+    	SpillFile f = new SpillFile(child1.getTupleDesc());
+    	for (List<Tuple> list : partitions.get(victim).values()) {
+    		for (Tuple t : list) {
+    			f.add(t);
+    		}
+    	}
+    	buildSpill[victim] = f;
+    	partitions.set(victim, null);
+    	residentBytes -= partitionBytes[victim];
+    	partitionBytes[victim] = 0;
+    	spillCount++;
+    }
+
+    /** Drop the hash tables and delete all spill files. */
+    private void clearPartitions() {
+    	closeSpilledJoin();
+    	if (buildSpill != null) {
+    		for (int i = 0; i < NUM_PARTITIONS; i++) {
+    			if (buildSpill[i] != null)
+    				buildSpill[i].delete();
+    		}
+    	}
+    	clearProbeSpill();
+    	partitions = null;
+    	buildSpill = null;
+    	probeSpill = null;
+    }
+
+    /** Delete the spilled right tuples, which a rewind has to produce again. */
+    private void clearProbeSpill() {
+    	if (probeSpill != null) {
+    		for (int i = 0; i < NUM_PARTITIONS; i++) {
+    			if (probeSpill[i] != null)
+    				probeSpill[i].delete();
+    			probeSpill[i] = null;
+    		}
+    	}
+    	nextSpilled = 0;
+    }
+
+    private void closeSpilledJoin() {
+    	if (spilledJoin != null) {
+    		spillCount += spilledJoin.getSpillCount();
+    		spilledJoin.close();
+    		spilledJoin = null;
     	}
-    	return cout > 0;
     }
 
     public void close() {
@@ -88,16 +311,25 @@ public class HashEquiJoin extends Operator {
     	super.close();
     	child1.close();
     	child2.close();
+    	if (pushKeyFilter) {
+    		setKeyFilter(null);
+    	}
     	t1 = null;
     	t2 = null;
-    	map.clear();
+    	clearPartitions();
     	listIt = null;
     }
 
+    /**
+     * Restarts the join. Partitions of the left child, resident or spilled,
+     * are kept; only the right child is read again.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-    	child1.rewind();
+    	closeSpilledJoin();
+    	clearProbeSpill();
     	child2.rewind();
+    	listIt = null;
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -127,17 +359,48 @@ public class HashEquiJoin extends Operator {
     	}
         while (child2.hasNext()) {
         	t2 = child2.next();
-        	List<Tuple> list = map.get(t2.getField(p.getField2()));
+        	Field key = t2.getField(p.getField2());
+        	int part = partition(key);
+        	if (buildSpill[part] != null) {
+        		if (probeSpill[part] == null) {
+        			probeSpill[part] = new SpillFile(child2.getTupleDesc());
+        		}
+        		probeSpill[part].add(t2);
+        		continue;
+        	}
+        	List<Tuple> list = partitions.get(part).get(key);
         	if (list != null) {
             	listIt = list.iterator();
             	return joinTuples();
         	} 
         }
-        child2.rewind();
-        if (loadMap()) {
-        	return fetchNext();
-        }
-        return null;
+        listIt = null;
+        return fetchSpilled();
+    }
+
+    /** @return the next tuple from the joins of the spilled partitions */
+    private Tuple fetchSpilled() throws TransactionAbortedException, DbException {
+    	while (true) {
+    		if (spilledJoin != null) {
+    			if (spilledJoin.hasNext()) {
+    				return spilledJoin.next();
+    			}
+    			closeSpilledJoin();
+    		}
+    		// partitions without spilled right tuples have no matches
+    		while (nextSpilled < NUM_PARTITIONS
+    				&& (buildSpill[nextSpilled] == null || probeSpill[nextSpilled] == null)) {
+    			nextSpilled++;
+    		}
+    		if (nextSpilled == NUM_PARTITIONS) {
+    			return null;
+    		}
+    		spilledJoin = new HashEquiJoin(p, buildSpill[nextSpilled].iterator(),
+    				probeSpill[nextSpilled].iterator(), depth + 1);
+    		spilledJoin.setMemoryBudget(memoryBudget);
+    		spilledJoin.open();
+    		nextSpilled++;
+    	}
     }
     
     private Tuple joinTuples() throws TransactionAbortedException, DbException{
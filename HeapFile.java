@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -9,6 +11,13 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Read-mostly tables can be switched to a memory-mapped mode with
+ * {@link #setMemoryMapped}, in which pages are copied out of a mapping of
+ * the file instead of being read with a system call each.
+ * <p>
+ * Inserts find a page with room through the file's {@link FreeSpaceMap},
+ * which is kept in a sidecar file next to the table.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -17,6 +26,15 @@ public class HeapFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private int id;
+	private volatile boolean memoryMapped = false;
+	/** Mapping of the first mappedPages pages of f, or null. */
+	private MappedByteBuffer mapped;
+	private int mappedPages = 0;
+	/** Free slots per page; loaded or rebuilt on first use. */
+	private volatile FreeSpaceMap freeSpace;
+	private final Object freeSpaceLock = new Object();
+	/** Serializes appending pages to the end of the file. */
+	private final Object appendLock = new Object();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -68,28 +86,73 @@ public class HeapFile implements DbFile {
     	return this.td;
     }
 
+    /**
+     * Turns the memory-mapped read path on or off. While it is on, readPage
+     * copies pages out of a read-only mapping of the file, which is
+     * extended whenever the file has grown past it. Writes still go through
+     * the file channel and are visible through the mapping.
+     * 
+     * @param on whether to read pages through a memory mapping
+     */
+    public synchronized void setMemoryMapped(boolean on) {
+    	memoryMapped = on;
+    	if (!on) {
+    		mapped = null;
+    		mappedPages = 0;
+    	}
+    }
+
+    /** @return true if pages are read through a memory mapping */
+    public boolean isMemoryMapped() {
+    	return memoryMapped;
+    }
+
+    /**
+     * @return a buffer holding exactly the bytes of page pageNo, backed by
+     *         the mapping of this file, or null if pageNo is not mappable
+     */
+    private synchronized ByteBuffer mappedPage(int pageNo) throws IOException {
+    	if (pageNo >= mappedPages) {
+    		// remap to cover the pages the file has grown by, as far as a
+    		// single mapping can reach
+    		int pages = Math.min(numPages(), Integer.MAX_VALUE / BufferPool.getPageSize());
+    		if (pageNo >= pages) {
+    			return null;
+    		}
+    		mapped = Database.getChannelCache().map(f, (long)pages * BufferPool.getPageSize());
+    		mappedPages = pages;
+    	}
+    	ByteBuffer page = mapped.duplicate();
+    	page.position(pageNo * BufferPool.getPageSize());
+    	page.limit(page.position() + BufferPool.getPageSize());
+    	return page.slice();
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
     	try {
-			RandomAccessFile file = new RandomAccessFile(f,"r");
-			int offset = BufferPool.getPageSize() * pid.pageNumber();
+			if (memoryMapped) {
+				ByteBuffer page = mappedPage(pid.pageNumber());
+				if (page != null) {
+					// snapshot the page, so its tuples do not change when
+					// the page is later written back through the mapping
+					byte[] data = new byte[BufferPool.getPageSize()];
+					page.get(data);
+					return noteFreeSpace(new HeapPage((HeapPageId)pid, data));
+				}
+			}
+			FileChannelCache channels = Database.getChannelCache();
+			long offset = (long)BufferPool.getPageSize() * pid.pageNumber();
+			// each page owns its byte array, so it has to be a fresh one
 			byte[] data = new byte[BufferPool.getPageSize()];
-			if (offset + BufferPool.getPageSize() > file.length()) {
-				System.err.println("page offset exceeds max size");
-				System.exit(1);
+			if (offset + BufferPool.getPageSize() > channels.size(f)) {
+				throw new IllegalArgumentException("page offset exceeds max size");
             }
-			file.seek(offset);
-            file.readFully(data);
-            file.close();
-            return new HeapPage((HeapPageId)pid, data);
-		} catch (FileNotFoundException e) {
-			System.err.println("File not found");
-			e.printStackTrace();
-			throw new IllegalArgumentException();
-		}catch (IOException e) {
-			System.err.println("IO Exception");
-			throw new IllegalArgumentException();
+			channels.readFully(f, offset, data);
+            return noteFreeSpace(new HeapPage((HeapPageId)pid, data));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
 		}
     }
 
@@ -98,17 +161,59 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
     	try {
-        	RandomAccessFile rf = new RandomAccessFile(this.f,"rw");
-        	rf.seek((long)page.getId().pageNumber()*BufferPool.getPageSize());
-        	rf.write(page.getPageData(), 0, BufferPool.getPageSize());
-        	rf.close();
-        } catch (FileNotFoundException e) {
-        	e.printStackTrace();
+        	Database.getChannelCache().writeFully(this.f,
+        			(long)page.getId().pageNumber()*BufferPool.getPageSize(), page.getPageData());
+        	// the persisted map describes the pages as they are on disk
+        	int free = ((HeapPage) page).getNumEmptySlots();
+        	FreeSpaceMap fsm = getFreeSpaceMap();
+        	fsm.setFreeSlots(page.getId().pageNumber(), free);
+        	fsm.persist(page.getId().pageNumber(), free);
         } catch (IOException e) {
         	e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the free-space map of this file, loading it from its sidecar
+     * file on first use. Pages the sidecar has no entry for are counted from
+     * their headers on disk and written back to the sidecar.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+    	FreeSpaceMap fsm = freeSpace;
+    	if (fsm != null) {
+    		return fsm;
+    	}
+    	synchronized (freeSpaceLock) {
+    		if (freeSpace == null) {
+    			fsm = new FreeSpaceMap(FreeSpaceMap.sidecarFor(f));
+    			try {
+    				int pages = numPages();
+    				int slots = HeapPage.slotsPerPage(td);
+    				byte[] header = new byte[HeapPage.headerSize(td)];
+    				for (int p = fsm.load(pages); p < pages; p++) {
+    					Database.getChannelCache().readFully(f, (long)p * BufferPool.getPageSize(), header);
+    					int free = HeapPage.countEmptySlots(header, slots);
+    					fsm.setFreeSlots(p, free);
+    					fsm.persist(p, free);
+    				}
+    			} catch (IOException e) {
+    				throw new RuntimeException(e);
+    			}
+    			freeSpace = fsm;
+    		}
+    		return freeSpace;
+    	}
+    }
+
+    /** Refresh the map's entry for a page just read from disk, if the map is loaded. */
+    private HeapPage noteFreeSpace(HeapPage page) {
+    	FreeSpaceMap fsm = freeSpace;
+    	if (fsm != null) {
+    		fsm.setFreeSlots(page.getId().pageNumber(), page.getNumEmptySlots());
+    	}
+    	return page;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -123,20 +228,28 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         HeapPage page = null;
-    	int pageNo = 0;
-    	while(pageNo < this.numPages()) {
+        FreeSpaceMap fsm = getFreeSpaceMap();
+    	int pageNo;
+    	while((pageNo = fsm.findPageWithRoom()) >= 0) {
     		page = (HeapPage) Database.getBufferPool().getPage(tid, 
     				new HeapPageId(this.getId(), pageNo), Permissions.READ_WRITE);
     		if (page.getNumEmptySlots() > 0) break;
+    		// the map was out of date; correct it and look again
+    		fsm.setFreeSlots(pageNo, 0);
     		Database.getBufferPool().releasePage(tid, page.getId());
-        	pageNo++;
+    		page = null;
     	}
     	
-    	
-    	page = new HeapPage(new HeapPageId(this.getId(),pageNo), HeapPage.createEmptyPageData());
-    	this.writePage(page);
-    	page = (HeapPage)Database.getBufferPool().getPage(tid, 
-    			new HeapPageId(this.getId(),pageNo),Permissions.READ_WRITE);
+    	// only append a new page if no existing page has room
+    	if (page == null) {
+    		synchronized (appendLock) {
+    			pageNo = this.numPages();
+    			this.writePage(new HeapPage(new HeapPageId(this.getId(),pageNo), HeapPage.createEmptyPageData()));
+    		}
+    		// lock the page outside appendLock, since getPage may block
+    		page = (HeapPage)Database.getBufferPool().getPage(tid, 
+    				new HeapPageId(this.getId(),pageNo),Permissions.READ_WRITE);
+    	}
     	
     	page.insertTuple(t);
     	ArrayList<Page> res = new ArrayList<Page>();
@@ -160,26 +273,83 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-    	return new HeapFileIterator(tid);
+    	return new HeapFileIterator(tid, 0);
+    }
+
+    /**
+     * Returns an iterator over all the tuples of this file that reads ahead.
+     * While pages are visited in order, the next readAhead pages are handed
+     * to {@link BufferPool#prefetchPage} so that reading them overlaps with
+     * processing the current one.
+     * 
+     * @param tid the transaction the scan runs as a part of
+     * @param readAhead the number of pages to keep requested ahead of the
+     *            scan; 0 disables read-ahead
+     */
+    public DbFileIterator iterator(TransactionId tid, int readAhead) {
+    	return new HeapFileIterator(tid, readAhead);
     }
     
-    private class HeapFileIterator implements DbFileIterator {
+    class HeapFileIterator implements DbFileIterator {
     	private int whichPage;
     	private Iterator<Tuple> tuplesInPage;
+    	private HeapPageId pinned;
     	private final TransactionId tid;
+    	private final int readAhead;
+    	private int lastPage = -1;
+    	private int requestedUpTo = -1;
+    	private int keyField;
+    	private BloomFilter keyFilter;
     	
-    	public HeapFileIterator(TransactionId tid) {
+    	public HeapFileIterator(TransactionId tid, int readAhead) {
     		this.tid = tid;
+    		this.readAhead = readAhead;
+    	}
+    	
+    	/**
+    	 * Skip tuples whose field keyField is not in filter, from the next
+    	 * page on; a null filter returns all tuples again.
+    	 */
+    	void setKeyFilter(int keyField, BloomFilter filter) {
+    		this.keyField = keyField;
+    		this.keyFilter = filter;
     	}
     	
     	public Iterator<Tuple> getPageTuples(HeapPageId pid) throws TransactionAbortedException, DbException {
-    		// get page from BufferPool
-    		HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid,  pid, Permissions.READ_ONLY);
-    		return page.iterator();
+    		readAhead(pid.pageNumber());
+    		// get page from BufferPool, keeping it pinned while we scan it
+    		HeapPage page = (HeapPage)Database.getBufferPool().pinPage(tid,  pid, Permissions.READ_ONLY);
+    		unpin();
+    		pinned = pid;
+    		return keyFilter == null ? page.iterator() : page.iterator(keyField, keyFilter);
+    	}
+    	
+    	private void unpin() {
+    		if (pinned != null) {
+    			Database.getBufferPool().unpinPage(pinned);
+    			pinned = null;
+    		}
+    	}
+    	
+    	/** Keep the window ahead of pageNo requested while access stays sequential. */
+    	private void readAhead(int pageNo) {
+    		boolean sequential = pageNo == lastPage + 1;
+    		lastPage = pageNo;
+    		if (readAhead <= 0 || !sequential) {
+    			return;
+    		}
+    		int end = Math.min(pageNo + readAhead, numPages() - 1);
+    		for (int p = Math.max(requestedUpTo, pageNo) + 1; p <= end; p++) {
+    			Database.getBufferPool().prefetchPage(new HeapPageId(getId(), p));
+    		}
+    		requestedUpTo = Math.max(requestedUpTo, end);
     	}
     	
     	@Override
     	public void open() throws DbException, TransactionAbortedException {
+    		unpin();
+    		lastPage = -1;
+    		requestedUpTo = -1;
     		whichPage = 0;
     		HeapPageId pid = new HeapPageId(getId(), whichPage);
     		// load tuples of first page
@@ -199,14 +369,15 @@ public class HeapFile implements DbFile {
     		}
     		
     		// check for whether still need to iterate other page
-    		if(whichPage < numPages() - 1) {
+    		while(whichPage < numPages() - 1) {
     			whichPage++;
     			HeapPageId pid = new HeapPageId(getId(), whichPage);
     			tuplesInPage = getPageTuples(pid);
-    			return tuplesInPage.hasNext();
-    		} else {
-    			return false;
+    			if(tuplesInPage.hasNext()) {
+    				return true;
+    			}
     		}
+    		return false;
     	}
     	
     	@Override
@@ -227,6 +398,7 @@ public class HeapFile implements DbFile {
     	public void close() {
     		whichPage = 0;
     		tuplesInPage = null;
+    		unpin();
     	}
     }
 }
@@ -2,10 +2,17 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are not decoded when the page is read. The page keeps the image it
+ * was built from, which is never written to, and hands out lightweight views
+ * that decode a field from that image only when it is asked for. Tuples
+ * inserted later are kept as ordinary Tuple objects alongside it. A
+ * {@link Cursor} walks the used slots of a page without allocating at all.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,10 +23,17 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
+    /** Tuples that differ from the page image, i.e. were inserted since it was read. */
     final Tuple tuples[];
     final int numSlots;
+    /** The page image this page was built from; read-only. */
+    private final ByteBuffer data;
+    /** True once a tuple has been inserted or deleted since the page was read. */
+    private boolean modified = false;
 
     byte[] oldData;
+    /** True while the page still matches its before image; oldData is then built on demand. */
+    private boolean beforeImageCurrent;
     private final Byte oldDataLock=new Byte((byte)0);
     private TransactionId dirtyid = null;
 
@@ -40,25 +54,42 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over the page image held in data, starting at its
+     * current position. The page keeps referring to the buffer and decodes
+     * tuples from it on demand, so the buffer must not change afterwards; in
+     * particular it must not be a live slice of a memory-mapped file. The
+     * buffer's position is left unchanged.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, Database.getCatalog().getTupleDesc(id.getTableId()), data);
+    }
+
+    /**
+     * Create a HeapPage of tuples with schema td over the page image held in
+     * data, for pages that belong to no table in the catalog, such as the
+     * sorted runs of a {@link RunFile}. Such pages must not be modified.
+     */
+    HeapPage(HeapPageId id, TupleDesc td, ByteBuffer data) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.td = td;
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data.slice();
+        if (this.data.remaining() < BufferPool.getPageSize()) {
+            throw new IOException("short page image: " + this.data.remaining() + " bytes");
+        }
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+            header[i] = this.data.get(i);
         
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
         setBeforeImage();
     }
@@ -68,11 +99,35 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return slotsPerPage(td);
+    }
+
+    /** @return the number of tuple slots on a page of a table with schema td */
+    static int slotsPerPage(TupleDesc td) {
     	//_tuples per page_ = floor((_page size_ * 8) / (_tuple size_ * 8 + 1))
         int num = (int)Math.floor((BufferPool.getPageSize()*8*1.0)/(td.getSize()*8+1));
         return num;
     }
 
+    /** @return the number of header bytes on a page of a table with schema td */
+    static int headerSize(TupleDesc td) {
+        return (int)Math.ceil(slotsPerPage(td)*1.0/8);
+    }
+
+    /**
+     * @return the number of empty slots among the first numSlots slots
+     *         described by the header bitmap header
+     */
+    static int countEmptySlots(byte[] header, int numSlots) {
+        int used = 0;
+        int full = numSlots / 8;
+        for (int i = 0; i < full; i++)
+            used += Integer.bitCount(header[i] & 0xff);
+        if (numSlots % 8 != 0)
+            used += Integer.bitCount(header[full] & ((1 << (numSlots % 8)) - 1));
+        return numSlots - used;
+    }
+
     /**
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
@@ -81,7 +136,7 @@ public class HeapPage implements Page {
         
         // some code goes here
     	// headerBytes = ceiling(tupsPerPage/8)
-        return (int)Math.ceil(getNumTuples()*1.0/8);
+        return headerSize(td);
                  
     }
     
@@ -92,7 +147,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = beforeImageCurrent ? getPageData() : oldData;
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -106,7 +161,21 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // serializing the page is deferred until it is first modified, so
+        // pages that are only read never pay for it
+        oldData = null;
+        beforeImageCurrent = true;
+        }
+    }
+
+    /** Snapshot the before image, if still pending, ahead of a modification. */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (beforeImageCurrent) {
+            oldData = getPageData();
+            beforeImageCurrent = false;
+        }
         }
     }
 
@@ -119,38 +188,166 @@ public class HeapPage implements Page {
     	return pid;
     }
 
+    /** @return the offset of slot slotId's tuple in the page image */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in used slot slotId: the inserted Tuple if there is
+     *         one, else a fresh view of the page image
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple tupleAt(int slotId) {
+        Tuple t = tuples[slotId];
+        return t != null ? t : new TupleView(this, slotId);
+    }
+
+    /**
+     * A tuple that decodes its fields from a page image on each getField
+     * call. Setting a field copies the tuple's values into the view first;
+     * the page itself is never changed through a view.
+     */
+    static final class TupleView extends Tuple {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient ByteBuffer data;
+        private transient HeapPageId pid;
+        private int slot;
+        private int base;
+        private boolean ridSet = false;
+        private Field[] values;
+
+        TupleView(HeapPage page, int slot) {
+            super(page.td, null);
+            point(page, slot);
+        }
+
+        /** Re-point this view at another slot; used by Cursor. */
+        void point(HeapPage page, int slot) {
+            this.data = page.data;
+            this.pid = page.pid;
+            this.slot = slot;
+            this.base = page.slotOffset(slot);
+            this.ridSet = false;
+            this.values = null;
+            super.setRecordId(null);
+        }
+
+        @Override
+        public int getInt(int i) {
+            if (values != null)
+                return ((IntField) values[i]).getValue();
+            return data.getInt(base + getTupleDesc().getFieldOffset(i));
+        }
+
+        @Override
+        public Field getField(int i) {
+            if (values != null)
+                return values[i];
+            return getTupleDesc().getFieldType(i).parse(data, base + getTupleDesc().getFieldOffset(i));
+        }
+
+        @Override
+        public void setField(int i, Field f) {
+            if (values == null) {
+                values = new Field[getTupleDesc().numFields()];
+                for (int j = 0; j < values.length; j++)
+                    values[j] = getField(j);
             }
-            return null;
+            values[i] = f;
         }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        @Override
+        public RecordId getRecordId() {
+            if (!ridSet) {
+                super.setRecordId(new RecordId(pid, slot));
+                ridSet = true;
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            return super.getRecordId();
+        }
+
+        @Override
+        public void setRecordId(RecordId rid) {
+            super.setRecordId(rid);
+            ridSet = true;
+        }
+
+        /** Views serialize as plain tuples. */
+        private Object writeReplace() {
+            Tuple t = new Tuple(getTupleDesc());
+            for (int i = 0; i < getTupleDesc().numFields(); i++)
+                t.setField(i, getField(i));
+            t.setRecordId(getRecordId());
+            return t;
+        }
+    }
+
+    /**
+     * Cursor walks the used slots of a page in order without allocating.
+     * {@link #tuple} returns the same view object for every slot it stops at,
+     * so callers that keep a tuple past the next call to {@link #next} must
+     * copy it. A cursor can be moved on to another page with {@link #reset}.
+     */
+    public static final class Cursor {
+        private HeapPage page;
+        private int slot;
+        private TupleView view;
+
+        public Cursor(HeapPage page) {
+            reset(page);
+        }
+
+        /** Position this cursor before the first tuple of page. */
+        public void reset(HeapPage page) {
+            this.page = page;
+            this.slot = -1;
+        }
+
+        /** Advance to the next used slot; @return false if there is none. */
+        public boolean next() {
+            while (++slot < page.numSlots) {
+                if (page.isSlotUsed(slot))
+                    return true;
+            }
+            return false;
+        }
+
+        /** @return the slot the cursor is on */
+        public int slot() {
+            return slot;
+        }
+
+        /** @return field i of the current tuple */
+        public Field getField(int i) {
+            Tuple t = page.tuples[slot];
+            return t != null ? t.getField(i) : view().getField(i);
         }
 
-        return t;
+        /** @return field i of the current tuple, which must be an INT_TYPE field */
+        public int getInt(int i) {
+            Tuple t = page.tuples[slot];
+            return t != null ? ((IntField) t.getField(i)).getValue() : view().getInt(i);
+        }
+
+        /** @return the current tuple; valid only until the cursor moves */
+        public Tuple tuple() {
+            Tuple t = page.tuples[slot];
+            return t != null ? t : view();
+        }
+
+        private TupleView view() {
+            if (view == null)
+                view = new TupleView(page, slot);
+            else if (view.data != page.data || view.slot != slot)
+                view.point(page, slot);
+            return view;
+        }
+    }
+
+    /** @return a cursor over the tuples of this page */
+    public Cursor cursor() {
+        return new Cursor(this);
     }
 
     /**
@@ -166,6 +363,13 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
+        if (!modified) {
+            // still identical to the image we were built from
+            byte[] copy = new byte[len];
+            data.duplicate().get(copy);
+            return copy;
+        }
+        byte[] raw = new byte[td.getSize()];
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -195,7 +399,20 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot that is unchanged since the page was read
+            if (tuples[i] == null) {
+                ByteBuffer src = data.duplicate();
+                src.position(slotOffset(i));
+                src.get(raw);
+                try {
+                    dos.write(raw, 0, raw.length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
+            // non-empty slot holding an inserted tuple
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
@@ -258,9 +475,12 @@ public class HeapPage implements Page {
     	} else if (!(this.isSlotUsed(tupleno))) {
     		throw new DbException("slot is empty");
     	}
+    	captureBeforeImage();
     	t.setRecordId(new RecordId(pid, -1));
     	this.tuples[tupleno] = null;
     	this.markSlotUsed(tupleno, false);
+    	modified = true;
+    	freeSpaceChanged();
     }
 
     /**
@@ -278,15 +498,26 @@ public class HeapPage implements Page {
     	} else if (!(this.td.equals(t.getTupleDesc()))) {
     		throw new DbException("TupleDesc doesn't match");
     	}
+    	captureBeforeImage();
     	int tupleno = 0;
     	while (this.isSlotUsed(tupleno)) {
     		tupleno++;
     	}
     	this.tuples[tupleno] = t;
     	this.markSlotUsed(tupleno, true);
+    	modified = true;
+    	freeSpaceChanged();
     	t.setRecordId(new RecordId(this.pid, tupleno));
     }
 
+    /** Keep the free-space map of our file in step with this page. */
+    private void freeSpaceChanged() {
+    	DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	if (f instanceof HeapFile) {
+    		((HeapFile) f).getFreeSpaceMap().setFreeSlots(pid.pageNumber(), getNumEmptySlots());
+    	}
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -318,14 +549,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-    	int cnt = 0;
-    	for(int i = 0; i < numSlots; i++) {
-    		if(!isSlotUsed(i)) {
-    			cnt++;
-    		}
-    	}
-    	
-        return cnt;
+        return countEmptySlots(header, numSlots);
     }
 
     /**
@@ -363,14 +587,75 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-    	ArrayList<Tuple> filledTuples = new ArrayList<> ();
-    	for(int i = 0; i < numSlots; i++) {
-    		if(isSlotUsed(i)) {
-    			filledTuples.add(tuples[i]);
+    	// walk the header bitmap directly; tuples are decoded lazily
+    	return new Iterator<Tuple>() {
+    		private int next = advance(0);
+
+    		private int advance(int from) {
+    			while (from < numSlots && !isSlotUsed(from)) {
+    				from++;
+    			}
+    			return from;
     		}
-    	}
-    	
-        return filledTuples.iterator();
+
+    		public boolean hasNext() {
+    			return next < numSlots;
+    		}
+
+    		public Tuple next() {
+    			if (next >= numSlots) {
+    				throw new NoSuchElementException();
+    			}
+    			Tuple t = tupleAt(next);
+    			next = advance(next + 1);
+    			return t;
+    		}
+
+    		public void remove() {
+    			throw new UnsupportedOperationException();
+    		}
+    	};
+    }
+
+    /**
+     * @return an iterator over the tuples on this page whose field keyField
+     *         might be in filter. Other tuples are skipped without being
+     *         materialized.
+     */
+    public Iterator<Tuple> iterator(final int keyField, final BloomFilter filter) {
+    	final Cursor cursor = cursor();
+    	final boolean intKey = td.getFieldType(keyField) == Type.INT_TYPE;
+    	return new Iterator<Tuple>() {
+    		private int next = advance();
+
+    		private int advance() {
+    			while (cursor.next()) {
+    				boolean pass = intKey ? filter.mightContain(cursor.getInt(keyField))
+    						: filter.mightContain(cursor.getField(keyField));
+    				if (pass) {
+    					return cursor.slot();
+    				}
+    			}
+    			return numSlots;
+    		}
+
+    		public boolean hasNext() {
+    			return next < numSlots;
+    		}
+
+    		public Tuple next() {
+    			if (next >= numSlots) {
+    				throw new NoSuchElementException();
+    			}
+    			Tuple t = tupleAt(next);
+    			next = advance();
+    			return t;
+    		}
+
+    		public void remove() {
+    			throw new UnsupportedOperationException();
+    		}
+    	};
     }
 
 }
@@ -42,8 +42,7 @@ public class HeapPageId implements PageId {
     public int hashCode() {
         // some code goes here
         // throw new UnsupportedOperationException("implement this");
-    	String hash = "" + tableId + pgNo;
-    	return hash.hashCode();
+    	return 31 * tableId + pgNo;
     }
 
     /**
@@ -0,0 +1,244 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins an outer child to a table stored in a BTreeFile
+ * whose key is the inner join field, by looking up the matches of each outer
+ * tuple in the index instead of scanning the whole inner table.
+ * <p>
+ * Outer tuples are read a block at a time and sorted on their join field, so
+ * that each distinct key is looked up once per block and consecutive lookups
+ * descend to neighbouring leaves, whose root-to-leaf path is then still in
+ * the BufferPool. Within a block, output comes out in order of the outer key.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of outer tuples sorted and probed together. */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private final TransactionId tid;
+    private final int tableid;
+    /** A scan of the inner table, used for its TupleDesc and by the planner. */
+    private BTreeScan child2;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private transient ArrayList<Tuple> block;
+    /** The outer tuples block[groupStart, groupEnd) share the key being probed. */
+    private transient int groupStart;
+    private transient int groupEnd;
+    private transient int groupPos;
+    private transient DbFileIterator probe;
+    private transient Tuple innerTuple;
+
+    /**
+     * Constructor.
+     * 
+     * @param p
+     *            The predicate to use to join the children; field2 must be
+     *            the key field of the inner table, and the operator must be
+     *            EQUALS or one of the range comparisons
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param tid
+     *            The transaction the index lookups run as a part of
+     * @param tableid
+     *            The inner table, which must be stored in a BTreeFile
+     * @param tableAlias
+     *            the alias of the inner table
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            TransactionId tid, int tableid, String tableAlias) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != p.getField2())
+            throw new IllegalArgumentException("inner join field must be the key of a BTreeFile");
+        if (!SortMergeJoin.supports(p.getOperator()))
+            throw new IllegalArgumentException("index nested-loop join does not support " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.tid = tid;
+        this.tableid = tableid;
+        this.child2 = new BTreeScan(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * @return true if the table with the given id can be the inner side of
+     *         an IndexNestedLoopJoin on field with operator op
+     */
+    public static boolean canProbe(int tableid, int field, Predicate.Op op) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field
+                && SortMergeJoin.supports(op);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * Set how many outer tuples are sorted and probed together. Must be
+     * called before the join is opened.
+     */
+    public void setBlockSize(int tuples) {
+        this.blockSize = Math.max(1, tuples);
+    }
+
+    /** @return the number of outer tuples sorted and probed together */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /** @return the name of the inner table */
+    public String getTableName() {
+        return child2.getTableName();
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        closeProbe();
+        block = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        closeProbe();
+        block = new ArrayList<Tuple>();
+        groupStart = groupEnd = groupPos = 0;
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        innerTuple = null;
+    }
+
+    /** Read and sort the next block of outer tuples. @return false if there are none */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockSize && child1.hasNext())
+            block.add(child1.next());
+        new SortKey(child1.getTupleDesc(), p.getField1(), true).sort(block);
+        groupStart = groupEnd = 0;
+        return !block.isEmpty();
+    }
+
+    /** @return the operator that finds inner keys matching an outer key with p's operator */
+    private Predicate.Op probeOp() {
+        // outer OP inner is inner REVERSED-OP outer
+        switch (p.getOperator()) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return Predicate.Op.EQUALS;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     * <p>
+     * As with {@link Join}, the tuples returned are the concatenation of the
+     * joining tuples from the left and right relation.
+     * 
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (innerTuple != null && groupPos < groupEnd)
+                return joinTuples(block.get(groupPos++), innerTuple);
+            if (probe != null && probe.hasNext()) {
+                innerTuple = probe.next();
+                groupPos = groupStart;
+                continue;
+            }
+            closeProbe();
+            groupStart = groupEnd;
+            if (groupStart >= block.size() && !loadBlock())
+                return null;
+            // the run of outer tuples with the same key shares one lookup
+            Field key = block.get(groupStart).getField(p.getField1());
+            groupEnd = groupStart + 1;
+            while (groupEnd < block.size() && key.equals(block.get(groupEnd).getField(p.getField1())))
+                groupEnd++;
+            BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+            probe = f.indexIterator(tid, new IndexPredicate(probeOp(), key));
+            probe.open();
+        }
+    }
+
+    private Tuple joinTuples(Tuple leftT, Tuple rightT) {
+        int size1 = leftT.getTupleDesc().numFields();
+        int size2 = rightT.getTupleDesc().numFields();
+
+        Tuple mergeT = new Tuple(this.getTupleDesc());
+        for (int i = 0; i < size1; i++) {
+            mergeT.setField(i, leftT.getField(i));
+        }
+        for (int i = 0; i < size2; i++) {
+            mergeT.setField(i + size1, rightT.getField(i));
+        }
+        return mergeT;
+    }
+
+    /**
+     * The second child is a scan of the inner table that this operator does
+     * not read; it is there so the plan can be displayed and costed.
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        if (children[1] instanceof BTreeScan)
+            child2 = (BTreeScan) children[1];
+    }
+}
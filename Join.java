@@ -4,14 +4,28 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested-loop join: it reads a block of outer (left) tuples
+ * into memory, then streams the inner (right) child once, testing each inner
+ * tuple against every tuple of the block. The inner child is therefore
+ * rewound once per block rather than once per outer tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages' worth of outer tuples buffered per block. */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
-    private Tuple leftTuple;
+    private int blockPages = DEFAULT_BLOCK_PAGES;
+    private transient ArrayList<Tuple> block = new ArrayList<Tuple>();
+    private transient int blockPos;
+    private transient Tuple rightTuple;
+    /** True once child2 has been read since it was last rewound. */
+    private transient boolean innerUsed;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -36,6 +50,34 @@ public class Join extends Operator {
         return p;
     }
 
+    /**
+     * Set how many pages' worth of outer tuples are buffered per pass over
+     * the inner child; 0 buffers a single tuple, which gives a plain
+     * tuple-at-a-time nested-loop join. Must be called before the join is
+     * opened.
+     */
+    public void setBlockPages(int pages) {
+        this.blockPages = pages;
+    }
+
+    /** @return the number of pages' worth of outer tuples per block */
+    public int getBlockPages() {
+        return blockPages;
+    }
+
+    /** @return the number of outer tuples buffered per block */
+    public int getBlockSize() {
+        return blockSize(blockPages, child1.getTupleDesc());
+    }
+
+    /**
+     * @return the number of tuples with schema td that fit in the given
+     *         number of pages, and at least 1
+     */
+    static int blockSize(int pages, TupleDesc td) {
+        return Math.max(1, pages * HeapPage.slotsPerPage(td));
+    }
+
     /**
      * @return
      *       the field name of join field1. Should be quantified by
@@ -71,6 +113,7 @@ public class Join extends Operator {
     	super.open();
     	child1.open();
     	child2.open();
+    	resetBlock();
     }
 
     public void close() {
@@ -78,13 +121,46 @@ public class Join extends Operator {
     	super.close();
     	child1.close();
     	child2.close();
+    	block.clear();
+    	rightTuple = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
     	child1.rewind();
     	child2.rewind();
-    	leftTuple = null;
+    	resetBlock();
+    }
+
+    private void resetBlock() {
+    	if (block == null) {
+    		block = new ArrayList<Tuple>();
+    	}
+    	block.clear();
+    	rightTuple = null;
+    	innerUsed = false;
+    }
+
+    /**
+     * Read the next block of outer tuples, rewinding the inner child if it
+     * has been read since the last rewind.
+     *
+     * @return false if the outer child is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+    	block.clear();
+    	if (!child1.hasNext()) {
+    		return false;
+    	}
+    	if (innerUsed) {
+    		child2.rewind();
+    	}
+    	int size = getBlockSize();
+    	while (block.size() < size && child1.hasNext()) {
+    		block.add(child1.next());
+    	}
+    	innerUsed = true;
+    	return true;
     }
 
     /**
@@ -107,20 +183,25 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-    	while(leftTuple != null || child1.hasNext()) {
-    		if (leftTuple == null) {
-    			leftTuple = child1.next();
+    	while (true) {
+    		if (rightTuple != null) {
+    			while (blockPos < block.size()) {
+    				Tuple leftTuple = block.get(blockPos++);
+    				if (p.filter(leftTuple, rightTuple)) {
+    					return joinTuples(leftTuple, rightTuple);
+    				}
+    			}
+    			rightTuple = null;
     		}
-    		while(child2.hasNext()) {
-    			Tuple rightTuple = child2.next();
-    			if (p.filter(leftTuple, rightTuple)) {
-    				return joinTuples(leftTuple, rightTuple);
+    		if (block.isEmpty() || !child2.hasNext()) {
+    			if (!loadBlock()) {
+    				return null;
     			}
+    			continue;
     		}
-    		child2.rewind();
-    		leftTuple = null;
+    		rightTuple = child2.next();
+    		blockPos = 0;
     	}
-        return null;
     }
     
     private Tuple joinTuples(Tuple leftT, Tuple rightT) {
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.EnumMap;
+
+/**
+ * A JoinChoice records the physical algorithm {@link JoinOptimizer} picked
+ * for one logical join, together with the estimated cost of every algorithm
+ * that could run the join and the reason each of the others was ruled out.
+ *
+ * @see JoinOptimizer#chooseJoin
+ */
+public class JoinChoice {
+
+    /** The physical join algorithms the optimizer knows how to cost. */
+    public enum Algorithm {
+        /** {@link Join} with one outer tuple per inner scan. */
+        NESTED_LOOP("nested loop"),
+        /** {@link Join} with a block of outer tuples per inner scan. */
+        BLOCK_NESTED_LOOP("block nested loop"),
+        /** {@link HashEquiJoin}, building on the outer input. */
+        HASH("hash"),
+        /** {@link SortMergeJoin}. */
+        SORT_MERGE("sort-merge"),
+        /** {@link IndexNestedLoopJoin}, probing the inner table's B+ tree. */
+        INDEX_NESTED_LOOP("index nested loop");
+
+        private final String displayName;
+
+        Algorithm(String displayName) {
+            this.displayName = displayName;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    private final EnumMap<Algorithm, Double> costs = new EnumMap<Algorithm, Double>(Algorithm.class);
+    private final EnumMap<Algorithm, String> ruledOut = new EnumMap<Algorithm, String>(Algorithm.class);
+    private Algorithm best = null;
+
+    /**
+     * Record the estimated cost of running the join with algorithm a. The
+     * cheapest algorithm recorded becomes the choice; ties go to the one
+     * declared first in {@link Algorithm}.
+     */
+    public void setCost(Algorithm a, double cost) {
+        costs.put(a, cost);
+        ruledOut.remove(a);
+        if (best == null || cost < costs.get(best)
+                || (cost == costs.get(best) && a.ordinal() < best.ordinal()))
+            best = a;
+    }
+
+    /** Record that algorithm a cannot run the join, and why. */
+    public void setNotApplicable(Algorithm a, String reason) {
+        if (costs.containsKey(a))
+            throw new IllegalStateException(a + " already has a cost");
+        ruledOut.put(a, reason);
+    }
+
+    /** @return the cheapest algorithm, or null if none has a cost */
+    public Algorithm getAlgorithm() {
+        return best;
+    }
+
+    /** @return the estimated cost of the cheapest algorithm */
+    public double getCost() {
+        return best == null ? Double.MAX_VALUE : costs.get(best);
+    }
+
+    /**
+     * @return the estimated cost of running the join with a, or
+     *         Double.MAX_VALUE if a cannot run it
+     */
+    public double getCost(Algorithm a) {
+        Double c = costs.get(a);
+        return c == null ? Double.MAX_VALUE : c;
+    }
+
+    /** @return why a cannot run the join, or null if it can */
+    public String getReason(Algorithm a) {
+        return ruledOut.get(a);
+    }
+
+    /**
+     * @return the chosen algorithm and its cost, followed by the cost of
+     *         every alternative or the reason it was ruled out
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(best).append(" (cost ").append(String.format("%.1f", getCost())).append(")");
+        for (Algorithm a : Algorithm.values()) {
+            if (a == best)
+                continue;
+            sb.append("; ").append(a).append(": ");
+            if (costs.containsKey(a))
+                sb.append(String.format("%.1f", costs.get(a)));
+            else
+                sb.append("n/a, ").append(ruledOut.get(a));
+        }
+        return sb.toString();
+    }
+}
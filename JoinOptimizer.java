@@ -13,6 +13,9 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    private long memoryBudget = HashEquiJoin.DEFAULT_MEMORY_BUDGET;
+    /** The algorithm picked for each join of the last plan ordered. */
+    private final HashMap<LogicalJoinNode, JoinChoice> choices = new HashMap<LogicalJoinNode, JoinChoice>();
 
     /**
      * Constructor
@@ -44,9 +47,36 @@ public class JoinOptimizer {
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        return buildJoin(defaultAlgorithm(p, plan1, plan2), p, plan1, plan2,
+                HashEquiJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Return an iterator computing a given logical join with the algorithm
+     * picked for it by {@link #chooseJoin}. Falls back to
+     * {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)} when
+     * there is no choice, or the chosen algorithm turns out not to fit the
+     * subplans (for example an index join whose inner plan is not a scan).
+     * 
+     * @param choice
+     *            the choice made for lj, or null
+     * @see #getJoinChoice
+     */
+    public DbIterator instantiateJoin(LogicalJoinNode lj, DbIterator plan1,
+            DbIterator plan2, JoinChoice choice) throws ParsingException {
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        JoinChoice.Algorithm a = choice == null ? null : choice.getAlgorithm();
+        if (a == null || !canBuild(a, p, plan2))
+            a = defaultAlgorithm(p, plan1, plan2);
+        return buildJoin(a, p, plan1, plan2, memoryBudget);
+    }
+
+    /** @return the predicate of lj, with fields resolved against the subplans */
+    private static JoinPredicate joinPredicate(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2) throws ParsingException {
 
         int t1id = 0, t2id = 0;
-        DbIterator j;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -66,12 +96,81 @@ public class JoinOptimizer {
             }
         }
 
-        JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
+        return new JoinPredicate(t1id, lj.p, t2id);
+    }
 
-        j = new Join(p,plan1,plan2);
+    /**
+     * Pick an algorithm without cost estimates: an index on the inner join
+     * field beats scanning the inner table; range joins are always cheaper
+     * merged than nested; equality joins only when both inputs already come
+     * sorted on the join fields.
+     */
+    private static JoinChoice.Algorithm defaultAlgorithm(JoinPredicate p,
+            DbIterator plan1, DbIterator plan2) {
+        if (canBuild(JoinChoice.Algorithm.INDEX_NESTED_LOOP, p, plan2))
+            return JoinChoice.Algorithm.INDEX_NESTED_LOOP;
+        if (SortMergeJoin.supports(p.getOperator())
+                && (p.getOperator() != Predicate.Op.EQUALS
+                        || (SortMergeJoin.isSortedOn(plan1, p.getField1())
+                                && SortMergeJoin.isSortedOn(plan2, p.getField2()))))
+            return JoinChoice.Algorithm.SORT_MERGE;
+        return JoinChoice.Algorithm.BLOCK_NESTED_LOOP;
+    }
 
-        return j;
+    /** @return true if a join with algorithm a can be built over the given inner plan */
+    private static boolean canBuild(JoinChoice.Algorithm a, JoinPredicate p,
+            DbIterator plan2) {
+        switch (a) {
+        case HASH:
+            return p.getOperator() == Predicate.Op.EQUALS;
+        case SORT_MERGE:
+            return SortMergeJoin.supports(p.getOperator());
+        case INDEX_NESTED_LOOP:
+            SeqScan inner = innerScan(plan2);
+            return inner != null
+                    && IndexNestedLoopJoin.canProbe(inner.getTableId(), p.getField2(), p.getOperator());
+        default:
+            return true;
+        }
+    }
 
+    private static DbIterator buildJoin(JoinChoice.Algorithm a, JoinPredicate p,
+            DbIterator plan1, DbIterator plan2, long memoryBudget) {
+        switch (a) {
+        case NESTED_LOOP:
+            Join nl = new Join(p, plan1, plan2);
+            nl.setBlockPages(0);
+            return nl;
+        case HASH:
+            HashEquiJoin hj = new HashEquiJoin(p, plan1, plan2);
+            hj.setMemoryBudget(memoryBudget);
+            return hj;
+        case SORT_MERGE:
+            return new SortMergeJoin(p, plan1, plan2);
+        case INDEX_NESTED_LOOP:
+            SeqScan inner = innerScan(plan2);
+            DbIterator j = new IndexNestedLoopJoin(p, plan1, inner.getTransactionId(),
+                    inner.getTableId(), inner.getAlias());
+            // filters on the inner table now apply to the joined tuples
+            int shift = plan1.getTupleDesc().numFields();
+            for (DbIterator it = plan2; it instanceof Filter; it = ((Filter) it).getChildren()[0]) {
+                Predicate f = ((Filter) it).getPredicate();
+                j = new Filter(new Predicate(f.getField() + shift, f.getOp(), f.getOperand()), j);
+            }
+            return j;
+        default:
+            return new Join(p, plan1, plan2);
+        }
+    }
+
+    /**
+     * @return the SeqScan at the bottom of plan if plan is a scan with zero
+     *         or more Filters on top, or null otherwise
+     */
+    private static SeqScan innerScan(DbIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        return plan instanceof SeqScan ? (SeqScan) plan : null;
     }
 
     /**
@@ -107,14 +206,166 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1*cost2 + card1*card2;
+            return chooseJoin(j, card1, card2, cost1, cost2, true).getCost();
         }
     }
 
+    /**
+     * Estimate the cost of each physical algorithm that can run a join, and
+     * pick the cheapest. The arguments are those of {@link #estimateJoinCost}.
+     * 
+     * @param innerIsBaseTable
+     *            true if the right-hand side is a scan of table j.t2Alias,
+     *            possibly filtered, rather than the result of other joins;
+     *            only then can the join probe an index on it
+     * @return the costs and the choice; never null for a table join
+     */
+    public JoinChoice chooseJoin(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsBaseTable) {
+        JoinChoice c = new JoinChoice();
+
+        // nested loops: one scan of the inner side per outer tuple (or per
+        // block of outer tuples), and a predicate test per pair of tuples
+        double pairs = (double) card1 * card2;
+        c.setCost(JoinChoice.Algorithm.NESTED_LOOP, cost1 + card1*cost2 + pairs);
+        int blockSize = Join.blockSize(Join.DEFAULT_BLOCK_PAGES, outerTupleDesc(j));
+        double blocks = Math.ceil((double) card1 / blockSize);
+        c.setCost(JoinChoice.Algorithm.BLOCK_NESTED_LOOP, cost1 + blocks*cost2 + pairs);
+
+        // hash: one pass over each side, plus writing out and reading back
+        // the fraction of both sides that does not fit in the memory budget
+        if (j.p == Predicate.Op.EQUALS) {
+            long buildBytes = HashEquiJoin.estimateBuildBytes(outerTupleDesc(j), card1);
+            double cost = cost1 + cost2 + card1 + card2;
+            if (buildBytes > memoryBudget) {
+                double spilled = 1.0 - (double) memoryBudget / buildBytes;
+                cost += 2 * spilled * (cost1 + cost2);
+            }
+            c.setCost(JoinChoice.Algorithm.HASH, cost);
+        } else {
+            c.setNotApplicable(JoinChoice.Algorithm.HASH, "needs an equality predicate");
+        }
+
+        // inputs of a logical join are never known to be sorted
+        if (SortMergeJoin.supports(j.p))
+            c.setCost(JoinChoice.Algorithm.SORT_MERGE, estimateSortMergeJoinCost(
+                    card1, card2, cost1, cost2, false, false));
+        else
+            c.setNotApplicable(JoinChoice.Algorithm.SORT_MERGE, "cannot merge on " + j.p);
+
+        String noIndex = indexJoinObstacle(j, innerIsBaseTable);
+        if (noIndex == null)
+            c.setCost(JoinChoice.Algorithm.INDEX_NESTED_LOOP,
+                    estimateIndexJoinCost(j, card1, card2, cost1, cost2));
+        else
+            c.setNotApplicable(JoinChoice.Algorithm.INDEX_NESTED_LOOP, noIndex);
+        return c;
+    }
+
+    /**
+     * @return why j cannot be run as an index nested-loop join, or null if
+     *         it can
+     */
+    private String indexJoinObstacle(LogicalJoinNode j, boolean innerIsBaseTable) {
+        if (!SortMergeJoin.supports(j.p))
+            return "cannot probe an index on " + j.p;
+        if (!innerIsBaseTable)
+            return "inner input is not a base table";
+        Integer tableId = p == null ? null : p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return "inner table unknown";
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return j.t2Alias + " has no B+ tree index";
+        int key = ((BTreeFile) f).keyField();
+        if (!f.getTupleDesc().getFieldName(key).equals(j.f2PureName))
+            return j.t2Alias + " is indexed on " + f.getTupleDesc().getFieldName(key)
+                    + ", not " + j.f2PureName;
+        return null;
+    }
+
+    /**
+     * Estimate the cost of an index nested-loop join: one scan of the outer
+     * side, and for each outer tuple a descent from the root of the inner
+     * table's B+ tree followed by a visit to each matching tuple.
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(
+                p.getTableId(j.t2Alias));
+        int pages = Math.max(1, f.numPages());
+        double pageCost = cost2 / pages;
+        // internal entries are a key and a child pointer
+        int keyLen = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keyLen + 4));
+        double height = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        double matches;
+        if (j.p != Predicate.Op.EQUALS)
+            matches = 0.3 * card2;
+        else if (isPkey(j.t2Alias, j.f2PureName))
+            matches = 1;
+        else
+            matches = Math.max(1.0, (double) Math.max(card1, card2) / Math.max(1, card1));
+        return cost1 + card1 * (height*pageCost + matches);
+    }
+
+    /** Set the memory budget hash joins are costed and built with, in bytes. */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return the memory budget hash joins are costed and built with, in bytes */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the algorithm picked for lj by the last call to
+     *         {@link #orderJoins}, or null if lj was not in the plan or is a
+     *         subquery join
+     */
+    public JoinChoice getJoinChoice(LogicalJoinNode lj) {
+        return choices.get(lj);
+    }
+
+    /**
+     * @return the schema of the table the outer join field belongs to, as an
+     *         estimate of the outer input's schema (which is wider if the
+     *         outer input is itself a join)
+     */
+    private TupleDesc outerTupleDesc(LogicalJoinNode j) {
+        Integer tableId = p == null ? null : p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return new TupleDesc(new Type[] { Type.INT_TYPE });
+        return Database.getCatalog().getTupleDesc(tableId);
+    }
+
+    /**
+     * Estimate the cost of a sort-merge join: one scan of each input, an
+     * n log n sort of each input that is not already sorted on its join
+     * field, and a single merge pass over both.
+     * 
+     * @param sorted1
+     *            true if the left-hand side comes sorted on its join field
+     * @param sorted2
+     *            true if the right-hand side comes sorted on its join field
+     * @see #estimateJoinCost
+     */
+    public static double estimateSortMergeJoinCost(int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        if (!sorted1)
+            cost += sortCost(card1);
+        if (!sorted2)
+            cost += sortCost(card2);
+        return cost;
+    }
+
+    /** @return the number of comparisons needed to sort card tuples */
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -235,7 +486,13 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+    	choices.clear();
+    	if (joins.isEmpty()) {
+    		// a single table; the cache would have no order for the empty set
+    		return new Vector<LogicalJoinNode>();
+    	}
     	PlanCache PlanCache = new PlanCache();
+    	HashMap<Set<LogicalJoinNode>, JoinChoice> lastJoinChoice = new HashMap<Set<LogicalJoinNode>, JoinChoice>();
     	Set<LogicalJoinNode> hashSet = new HashSet<LogicalJoinNode>(joins);
     	Set<Set<LogicalJoinNode>> joinSet = enumerateSubsets(joins,1);
     	
@@ -253,10 +510,20 @@ public class JoinOptimizer {
     				 }
     			}
     			PlanCache.addPlan(set, bestPlan.cost, bestPlan.card, bestPlan.plan);
+    			lastJoinChoice.put(set, bestPlan.choice);
     		}
     	}
     	
     	Vector<LogicalJoinNode> best = PlanCache.getOrder(hashSet);
+    	// the best order of each prefix of best is that prefix, so the choice
+    	// made for its last join is the one to instantiate
+    	Set<LogicalJoinNode> prefix = new HashSet<LogicalJoinNode>();
+    	for (LogicalJoinNode j : best) {
+    		prefix.add(j);
+    		JoinChoice c = lastJoinChoice.get(prefix);
+    		if (c != null)
+    			choices.put(j, c);
+    	}
     	if (explain) {
     		printJoins(best,PlanCache,stats,filterSelectivities);
     	}
@@ -325,6 +592,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // which sides are scans of base tables rather than earlier joins
+        boolean leftBase = true, rightBase = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -360,6 +629,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                leftBase = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -376,6 +646,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                rightBase = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -389,14 +660,23 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
+        JoinChoice choice = null, choice2 = null;
+        double cost1, cost2;
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        if (j instanceof LogicalSubplanJoinNode) {
+            cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+            cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        } else {
+            choice = chooseJoin(j, t1card, t2card, t1cost, t2cost, rightBase);
+            choice2 = chooseJoin(j2, t2card, t1card, t2cost, t1cost, leftBase);
+            cost1 = choice.getCost();
+            cost2 = choice2.getCost();
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            choice = choice2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
@@ -409,6 +689,7 @@ public class JoinOptimizer {
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
+        cc.choice = choice;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * logical times of its last K references, and the victim is the page whose
+ * K-th most recent reference is oldest. Pages referenced fewer than K times
+ * have an infinite backward K-distance and are evicted first, oldest first,
+ * which keeps one-off scan pages from pushing out pages that are hit
+ * repeatedly by point lookups.
+ * <p>
+ * Reference history outlives residency for a bounded number of pages so that
+ * a page re-read shortly after eviction is still recognised as hot; the
+ * histories of the pages evicted longest ago are forgotten first.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock = 0;
+
+    /** Reference history of resident pages. */
+    private final HashMap<PageId, History> resident;
+    /** Reference history of recently evicted pages, oldest eviction first. */
+    private final LinkedHashMap<PageId, History> evicted;
+    /** Resident pages with fewer than K references, oldest first. */
+    private final LinkedHashMap<PageId, History> young;
+    /** Resident pages with K references, ordered by K-th most recent one. */
+    private final TreeSet<History> mature;
+
+    private static class History implements Comparable<History> {
+        final PageId pid;
+        final long[] refs;   // ring of reference times
+        int count = 0;       // references recorded, capped at refs.length
+        int next = 0;        // slot the next reference goes to
+        long seq;            // tie breaker, unique per history
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.refs = new long[k];
+        }
+
+        void reference(long now) {
+            refs[next] = now;
+            next = (next + 1) % refs.length;
+            if (count < refs.length)
+                count++;
+        }
+
+        boolean isMature() {
+            return count == refs.length;
+        }
+
+        /** @return time of the K-th most recent reference */
+        long kthTime() {
+            return refs[next];
+        }
+
+        public int compareTo(History o) {
+            if (kthTime() != o.kthTime())
+                return kthTime() < o.kthTime() ? -1 : 1;
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * Create an LRU-2 policy for a buffer pool with the given capacity.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public LRUKPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    /**
+     * Create an LRU-K policy.
+     *
+     * @param numPages the number of frames in the buffer pool; history is
+     *            retained for up to twice this many evicted pages
+     * @param k the number of references to track per page
+     */
+    public LRUKPolicy(final int numPages, int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.young = new LinkedHashMap<PageId, History>();
+        this.mature = new TreeSet<History>();
+        this.resident = new HashMap<PageId, History>();
+        this.evicted = new LinkedHashMap<PageId, History>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> e) {
+                return size() > 2 * numPages;
+            }
+        };
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (resident.containsKey(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        History h = evicted.remove(pid);
+        if (h == null)
+            h = new History(pid, k);
+        resident.put(pid, h);
+        reference(h);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null)
+            return;
+        unlink(h);
+        reference(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            unlink(h);
+            evict(h);
+        }
+    }
+
+    public synchronized PageId chooseVictim(VictimFilter filter) {
+        Iterator<History> it = young.values().iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (filter.isEvictable(h.pid)) {
+                it.remove();
+                evict(h);
+                return h.pid;
+            }
+        }
+        it = mature.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (filter.isEvictable(h.pid)) {
+                it.remove();
+                evict(h);
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of evicted pages whose history is still kept */
+    synchronized int evictedHistoryCount() {
+        return evicted.size();
+    }
+
+    private void reference(History h) {
+        h.reference(++clock);
+        h.seq = clock;
+        if (h.isMature())
+            mature.add(h);
+        else
+            young.put(h.pid, h);
+    }
+
+    /** Move the history of a page that is no longer resident to evicted. */
+    private void evict(History h) {
+        resident.remove(h.pid);
+        evicted.put(h.pid, h);
+    }
+
+    private void unlink(History h) {
+        if (h.isMature())
+            mature.remove(h);
+        else
+            young.remove(h.pid);
+    }
+}
@@ -0,0 +1,41 @@
+package simpledb;
+
+/**
+ * Checks that LRUKPolicy stays scan resistant and bounds the history it
+ * keeps: a page referenced K times survives a scan of many times more pages
+ * than the buffer pool holds, and the scanned pages leave behind no more
+ * than twice as many histories as there are frames.
+ */
+public class LRUKPolicyTest {
+
+    public static void main(String[] argv) {
+        final int numPages = 8;
+        final int scanned = 100 * numPages;
+        LRUKPolicy policy = new LRUKPolicy(numPages);
+        ReplacementPolicy.VictimFilter any = new ReplacementPolicy.VictimFilter() {
+            public boolean isEvictable(PageId pid) {
+                return true;
+            }
+        };
+
+        PageId hot = new HeapPageId(0, 0);
+        policy.pageAdmitted(hot);
+        policy.pageAccessed(hot);
+        int residentPages = 1;
+
+        for (int i = 1; i <= scanned; i++) {
+            if (residentPages == numPages) {
+                PageId victim = policy.chooseVictim(any);
+                if (hot.equals(victim))
+                    throw new RuntimeException("hot page evicted by a scan, at page " + i);
+                residentPages--;
+            }
+            policy.pageAdmitted(new HeapPageId(0, i));
+            residentPages++;
+            if (policy.evictedHistoryCount() > 2 * numPages)
+                throw new RuntimeException("history of " + policy.evictedHistoryCount()
+                        + " evicted pages kept for " + numPages + " frames");
+        }
+        System.out.println("LRUKPolicyTest passed");
+    }
+}
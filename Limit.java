@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit implements LIMIT and OFFSET: it skips the first offset tuples of its
+ * child and returns at most limit of the rest. Once it has returned limit
+ * tuples it stops pulling from the child, so a pipeline below it that
+ * produces tuples on demand, such as a scan, stops early too.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int limit;
+    private final int offset;
+    private int skipped;
+    private int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator
+     * @param limit
+     *            The most tuples to return
+     * @param offset
+     *            The number of leading tuples of the child to skip
+     */
+    public Limit(DbIterator child, int limit, int offset) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("limit and offset must not be negative");
+        this.child = child;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the most tuples this operator returns */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the number of leading tuples of the child this operator skips */
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        skipped = 0;
+        returned = 0;
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        skipped = 0;
+        returned = 0;
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (returned >= limit)
+            return null;
+        while (skipped < offset && child.hasNext()) {
+            child.next();
+            skipped++;
+        }
+        if (!child.hasNext())
+            return null;
+        returned++;
+        return child.next();
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
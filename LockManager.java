@@ -0,0 +1,248 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * LockManager implements strict two-phase locking at page granularity for
+ * the BufferPool. Each page can be locked in shared mode by any number of
+ * transactions, or in exclusive mode by exactly one; a transaction that is
+ * the only shared holder of a page may upgrade its lock to exclusive.
+ * <p>
+ * Locks belong to transactions, not threads, so a transaction that is run by
+ * several threads can re-request a lock it already holds. Blocked requests
+ * are recorded in a wait-for graph; a request that would close a cycle is
+ * refused with a TransactionAbortedException so the caller can abort and
+ * release its locks.
+ *
+ * @see BufferPool#getPage
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Lock state of one page. */
+    private static class PageLock {
+        final HashSet<TransactionId> shared = new HashSet<TransactionId>();
+        TransactionId exclusive = null;
+
+        boolean isFree() {
+            return exclusive == null && shared.isEmpty();
+        }
+    }
+
+    /** One blocked request, and the transactions it is waiting for. */
+    private static class Wait {
+        final HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+    }
+
+    private final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    private final HashMap<TransactionId, HashSet<PageId>> held = new HashMap<TransactionId, HashSet<PageId>>();
+    /**
+     * Edges of the wait-for graph: each waiting transaction to its blocked
+     * requests. A transaction run by several threads can have several
+     * requests blocked at once, and waits for the holders of all of them.
+     */
+    private final HashMap<TransactionId, HashSet<Wait>> waitsFor = new HashMap<TransactionId, HashSet<Wait>>();
+
+    // lock-wait metrics
+    private long requests = 0;
+    private long waits = 0;
+    private long waitNanos = 0;
+    private long deadlocks = 0;
+
+    /**
+     * Acquire a lock on pid for tid, blocking until it can be granted. A
+     * READ_ONLY request takes a shared lock, a READ_WRITE request takes or
+     * upgrades to an exclusive lock.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if waiting would deadlock, or the
+     *             waiting thread is interrupted
+     */
+    public synchronized void acquire(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        requests++;
+        if (tryGrant(tid, pid, exclusive))
+            return;
+
+        waits++;
+        long start = System.nanoTime();
+        Wait w = new Wait();
+        HashSet<Wait> pending = waitsFor.get(tid);
+        if (pending == null) {
+            pending = new HashSet<Wait>();
+            waitsFor.put(tid, pending);
+        }
+        pending.add(w);
+        try {
+            while (true) {
+                w.blockers.clear();
+                w.blockers.addAll(blockers(tid, pid, exclusive));
+                if (closesCycle(tid, w.blockers)) {
+                    deadlocks++;
+                    throw new TransactionAbortedException();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionAbortedException();
+                }
+                if (tryGrant(tid, pid, exclusive))
+                    return;
+            }
+        } finally {
+            // only this request stops waiting; other threads of tid may not
+            pending.remove(w);
+            if (pending.isEmpty())
+                waitsFor.remove(tid);
+            waitNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Release whatever lock tid holds on pid.
+     */
+    public synchronized void release(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = held.get(tid);
+        if (pages == null || !pages.remove(pid))
+            return;
+        if (pages.isEmpty())
+            held.remove(tid);
+        unlock(tid, pid);
+        notifyAll();
+    }
+
+    /**
+     * Release all locks held by tid.
+     */
+    public synchronized void releaseAll(TransactionId tid) {
+        HashSet<PageId> pages = held.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            unlock(tid, pid);
+        notifyAll();
+    }
+
+    /** @return true if tid holds a shared or exclusive lock on pid */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        HashSet<PageId> pages = held.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /** @return true if tid holds an exclusive lock on pid */
+    public synchronized boolean holdsExclusive(TransactionId tid, PageId pid) {
+        PageLock l = locks.get(pid);
+        return l != null && tid.equals(l.exclusive);
+    }
+
+    /** @return a snapshot of the pages tid currently holds locks on */
+    public synchronized Set<PageId> getLockedPages(TransactionId tid) {
+        HashSet<PageId> pages = held.get(tid);
+        if (pages == null)
+            return Collections.emptySet();
+        return new HashSet<PageId>(pages);
+    }
+
+    /** @return the number of lock requests made so far */
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public synchronized long getWaitCount() {
+        return waits;
+    }
+
+    /** @return total time spent waiting for locks, in nanoseconds */
+    public synchronized long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /** @return the number of requests refused because they would deadlock */
+    public synchronized long getDeadlockCount() {
+        return deadlocks;
+    }
+
+    /** Reset the lock-wait metrics to zero. */
+    public synchronized void resetStats() {
+        requests = waits = waitNanos = deadlocks = 0;
+    }
+
+    private boolean tryGrant(TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock l = locks.get(pid);
+        if (l == null) {
+            l = new PageLock();
+            locks.put(pid, l);
+        }
+        if (tid.equals(l.exclusive))
+            return true;
+        if (exclusive) {
+            // free, or an upgrade by the sole shared holder
+            if (l.exclusive != null || l.shared.size() > 1
+                    || (l.shared.size() == 1 && !l.shared.contains(tid)))
+                return false;
+            l.shared.remove(tid);
+            l.exclusive = tid;
+        } else {
+            if (l.exclusive != null)
+                return false;
+            l.shared.add(tid);
+        }
+        HashSet<PageId> pages = held.get(tid);
+        if (pages == null) {
+            pages = new HashSet<PageId>();
+            held.put(tid, pages);
+        }
+        pages.add(pid);
+        return true;
+    }
+
+    private Set<TransactionId> blockers(TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock l = locks.get(pid);
+        HashSet<TransactionId> b = new HashSet<TransactionId>();
+        if (l.exclusive != null)
+            b.add(l.exclusive);
+        if (exclusive)
+            b.addAll(l.shared);
+        b.remove(tid);
+        return b;
+    }
+
+    /** @return true if tid is reachable from any of blockers in the wait-for graph */
+    private boolean closesCycle(TransactionId tid, Set<TransactionId> blockers) {
+        HashSet<TransactionId> seen = new HashSet<TransactionId>();
+        ArrayDeque<TransactionId> todo = new ArrayDeque<TransactionId>(blockers);
+        while (!todo.isEmpty()) {
+            TransactionId t = todo.poll();
+            if (t.equals(tid))
+                return true;
+            if (!seen.add(t))
+                continue;
+            HashSet<Wait> next = waitsFor.get(t);
+            if (next != null) {
+                for (Wait w : next)
+                    todo.addAll(w.blockers);
+            }
+        }
+        return false;
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        PageLock l = locks.get(pid);
+        if (l == null)
+            return;
+        if (tid.equals(l.exclusive))
+            l.exclusive = null;
+        l.shared.remove(tid);
+        if (l.isFree())
+            locks.remove(pid);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the wait-for graph of LockManager keeps the edges of every
+ * blocked thread of a transaction: two threads of T1 block on T2 and T3,
+ * the one blocked on T2 is granted its lock, and T3 then waits for T1. The
+ * request of T3 must be refused as a deadlock rather than wait forever.
+ */
+public class LockManagerTest {
+
+    public static void main(String[] argv) throws Exception {
+        final LockManager lm = new LockManager();
+        final TransactionId t1 = new TransactionId();
+        final TransactionId t2 = new TransactionId();
+        final TransactionId t3 = new TransactionId();
+        final PageId p0 = new HeapPageId(0, 0);
+        final PageId p1 = new HeapPageId(0, 1);
+        final PageId p2 = new HeapPageId(0, 2);
+
+        lm.acquire(t1, p0, Permissions.READ_WRITE);
+        lm.acquire(t2, p1, Permissions.READ_WRITE);
+        lm.acquire(t3, p2, Permissions.READ_WRITE);
+
+        final CountDownLatch w1Done = new CountDownLatch(1);
+        Thread w1 = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t1, p1, Permissions.READ_WRITE);
+                    w1Done.countDown();
+                } catch (TransactionAbortedException e) {
+                }
+            }
+        };
+        Thread w2 = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t1, p2, Permissions.READ_WRITE);
+                } catch (TransactionAbortedException e) {
+                }
+            }
+        };
+        w1.setDaemon(true);
+        w2.setDaemon(true);
+        w1.start();
+        w2.start();
+        while (lm.getWaitCount() < 2)
+            Thread.sleep(10);
+
+        // T2 finishes, so the first thread of T1 is granted p1 and stops waiting
+        lm.releaseAll(t2);
+        if (!w1Done.await(5, TimeUnit.SECONDS))
+            throw new RuntimeException("first thread of T1 was not granted its lock");
+
+        // the second thread of T1 still waits for T3, so T3 waiting for T1 is a deadlock
+        final boolean[] aborted = new boolean[1];
+        Thread w3 = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t3, p0, Permissions.READ_WRITE);
+                } catch (TransactionAbortedException e) {
+                    aborted[0] = true;
+                }
+            }
+        };
+        w3.setDaemon(true);
+        w3.start();
+        w3.join(5000);
+        if (w3.isAlive() || !aborted[0])
+            throw new RuntimeException("deadlock between two threads of T1 and T3 was not detected");
+
+        lm.releaseAll(t3);
+        w2.join(5000);
+        if (w2.isAlive())
+            throw new RuntimeException("second thread of T1 was not granted its lock");
+        if (lm.getDeadlockCount() != 1)
+            throw new RuntimeException("expected one deadlock, got " + lm.getDeadlockCount());
+        System.out.println("LockManagerTest passed");
+    }
+}
@@ -29,12 +29,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<LogicalSelectListNode> aggregates;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields;
+    private Vector<Boolean> oByAscs;
+    /** LIMIT of the query, or -1 if there is none, and its OFFSET. */
+    private int limit = -1;
+    private int offset = 0;
     private String query;
 //    private Query owner;
 
@@ -47,6 +50,10 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggregates = new Vector<LogicalSelectListNode>();
+        oByFields = new Vector<String>();
+        oByAscs = new Vector<Boolean>();
         this.query = "";
     }
 
@@ -186,36 +193,75 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called once per aggregate expression; all of
+        them are computed in one pass by a single Aggregate operator, whose
+        output has the GROUP BY fields followed by the aggregates in the
+        order they were added.  Adding the same aggregate twice has no effect.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null; other fields may be added
+            with {@link #addGroupBy}
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupBy(gfield);
         hasAgg = true;
+        if (aggregateIndex(op, afield) < 0)
+            aggregates.addElement(new LogicalSelectListNode(op, afield));
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a GROUP BY field to the query.  Fields are grouped by in the order
+        they were added; adding the same field twice has no effect.
+        @param field the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String field) throws ParsingException {
+        field=disambiguateName(field);
+        if (!groupByFields.contains(field))
+            groupByFields.addElement(field);
+    }
+
+    /** @return the position of the aggregate op over the disambiguated field
+        afield among those added with {@link #addAggregate}, or -1 */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode a = aggregates.elementAt(i);
+            if (a.aggOp.equalsIgnoreCase(op) && a.fname.equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  May be called
+        once per ORDER BY field, most significant first.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Limit the output of the query to at most limit rows, after skipping the
+        first offset rows, as LIMIT limit OFFSET offset would.  Combined with an
+        ORDER BY, the query is planned with a {@link TopN} instead of a full sort
+        when limit + offset rows fit in the sort's memory budget.
+        @param limit the most rows to return, or -1 for no limit
+        @param offset the number of leading rows to skip
+     * @throws ParsingException if limit or offset is out of range
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < -1 || offset < 0)
+            throw new ParsingException("Invalid LIMIT " + limit + " OFFSET " + offset);
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -271,6 +317,69 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the constant of filter lf, as a field of the type of the field it is compared to
+     *  @param td the schema of the tuples lf applies to
+     *  @throws ParsingException if lf's field is not in td
+     */
+    private static Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (java.util.NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Choose the access path of each table stored in a B+ tree: among its filters on the key
+     *  that the index can answer, the one whose index scan is estimated cheapest, if that is
+     *  cheaper than a sequential scan.  The table's SeqScan in subplanMap is replaced by a
+     *  {@link BTreeScan} with that filter as its {@link IndexPredicate}.
+     *  @return the filter answered by the index of each table that is scanned through one,
+     *    keyed by table alias
+     */
+    private HashMap<String,LogicalFilterNode> chooseIndexScans(TransactionId t,
+            Map<String,TableStats> statsMap, boolean explain) throws ParsingException {
+        HashMap<String,LogicalFilterNode> chosen = new HashMap<String,LogicalFilterNode>();
+        HashMap<String,Double> costs = new HashMap<String,Double>();
+        for (LogicalFilterNode lf : filters) {
+            if (!(subplanMap.get(lf.tableAlias) instanceof SeqScan) || !isIndexable(lf.p))
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(getTableId(lf.tableAlias)));
+            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
+            if (s == null || s.indexKeyField() < 0 || !td.getFieldName(s.indexKeyField()).equals(lf.fieldQuantifiedName))
+                continue;
+            double sel = s.estimateSelectivity(s.indexKeyField(), lf.p, filterConstant(lf, td));
+            double cost = s.estimateIndexScanCost(sel);
+            Double best = costs.get(lf.tableAlias);
+            if (cost < (best == null ? s.estimateScanCost() : best)) {
+                chosen.put(lf.tableAlias, lf);
+                costs.put(lf.tableAlias, cost);
+            }
+        }
+        for (Map.Entry<String,LogicalFilterNode> e : chosen.entrySet()) {
+            LogicalFilterNode lf = e.getValue();
+            SeqScan ss = (SeqScan) subplanMap.get(lf.tableAlias);
+            IndexPredicate ipred = new IndexPredicate(lf.p, filterConstant(lf, ss.getTupleDesc()));
+            subplanMap.put(lf.tableAlias, new BTreeScan(t, ss.getTableId(), lf.tableAlias, ipred));
+            if (explain) {
+                System.out.println("Index scan of " + lf.tableAlias + " on " + lf.fieldQuantifiedName
+                        + " " + lf.p + " " + lf.c + ": cost " + costs.get(lf.tableAlias));
+            }
+        }
+        return chosen;
+    }
+
+    /** @return true if a B+ tree can find the tuples whose key satisfies op by itself */
+    private static boolean isIndexable(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN
+                || op == Predicate.Op.LESS_THAN_OR_EQ || op == Predicate.Op.GREATER_THAN
+                || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -306,6 +415,8 @@ public class LogicalPlan {
 
         }
 
+        HashMap<String,LogicalFilterNode> indexFilters = chooseIndexScans(t, statsMap, explain);
+
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -314,19 +425,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (java.util.NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
 
             Predicate p = null;
             try {
@@ -334,7 +433,9 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // the index scan of the table already applies its key filter
+            if (indexFilters.get(lf.tableAlias) != lf)
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -382,8 +483,13 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            JoinChoice choice = jo.getJoinChoice(lj);
+            j = jo.instantiateJoin(lj,plan1,plan2,choice);
             subplanMap.put(t1name, j);
+            if (explain && choice != null) {
+                System.out.println("Join " + lj.f1QuantifiedName + " " + lj.p + " "
+                        + lj.f2QuantifiedName + ": " + choice);
+            }
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -414,7 +520,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int aggIndex = aggregateIndex(si.aggOp, si.fname);
+                if (aggIndex < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list was not added to the query");
+                }
+                outFields.add(groupByFields.size() + aggIndex);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +536,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int groupIndex = groupByFields.indexOf(si.fname);
+                    if (groupIndex < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(groupIndex);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +573,17 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggregates.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggregates.elementAt(i).fname);
+                    aops[i] = getAggOp(aggregates.elementAt(i).aggOp);
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                }
+                aggNode = new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,7 +593,23 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIds = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIds.length; i++) {
+                oByIds[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                ascs[i] = oByAscs.elementAt(i);
+            }
+            long kept = limit < 0 ? -1 : (long) limit + offset;
+            if (kept >= 0 && kept <= Integer.MAX_VALUE
+                    && OrderBy.estimateBytes(node.getTupleDesc(), kept) <= OrderBy.DEFAULT_MEMORY_BUDGET) {
+                node = new TopN(oByIds, ascs, (int) kept, node);
+            } else {
+                node = new OrderBy(oByIds, ascs, node);
+            }
+        }
+
+        if (limit >= 0 || offset > 0) {
+            node = new Limit(node, limit < 0 ? Integer.MAX_VALUE : limit, offset);
         }
 
         return new Project(outFields, outTypes, node);
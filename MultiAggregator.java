@@ -0,0 +1,364 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once, over groups keyed by any
+ * number of fields, in a single pass over the input.
+ * <p>
+ * Groups are numbered in the order they are first seen. The sum, count,
+ * minimum and maximum of every aggregate of every group are kept together
+ * in one long array, and the values of the group fields in one column per
+ * field, an int column for INT_TYPE fields and a Field column otherwise.
+ * Groups are found through an open-addressing table of group numbers, so a
+ * key made only of INT_TYPE fields is probed without allocating. Aggregates
+ * over fields other than INT_TYPE only support COUNT.
+ * <p>
+ * {@link IntegerAggregator} is the case of a single aggregate over at most
+ * one group field.
+ */
+public class MultiAggregator implements PartialAggregator {
+
+    private static final long serialVersionUID = 1L;
+    /** Number of groups the arrays have room for at first. */
+    private static final int INITIAL_GROUPS = 16;
+    /** Bytes taken by the accumulators of one aggregate of a group. */
+    private static final int AGGREGATE_BYTES = 4 * 8;
+    /** Bytes taken by the slots of a group. */
+    private static final int SLOT_BYTES = 2 * 4;
+    /** Rough size of a Field object apart from its value, in bytes. */
+    private static final int FIELD_OVERHEAD = 32;
+    /** Number of accumulators per aggregate: sum, count, min and max. */
+    private static final int ACCS = 4;
+    /** Number of partial state fields per aggregate; see {@link #partialTupleDesc}. */
+    private static final int PARTIAL_FIELDS = 5;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final boolean[] intAggregates;
+    private final Op[] whats;
+    /** The group fields of a partial state tuple: its first fields. */
+    private final int[] partialGbfields;
+
+    private int numGroups = 0;
+    /** The accumulators of aggregate a of group g start at (g * whats.length + a) * ACCS. */
+    private long[] accs;
+    /** Group values, by group field then group number: intKeys[i] for INT_TYPE fields, fieldKeys[i] otherwise. */
+    private int[][] intKeys;
+    private Field[][] fieldKeys;
+    /** Open-addressing table holding group number + 1 per slot, 0 if empty. */
+    private int[] slots;
+    /** The key being looked up, in the same layout as a group of intKeys and fieldKeys. */
+    private int[] probeInts;
+    private Field[] probeFields;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, or an
+     *            empty array if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param whats
+     *            the aggregation operator of each aggregate field
+     * @throws IllegalArgumentException
+     *            if the arrays do not match, or an aggregate over a field
+     *            other than INT_TYPE is not a COUNT
+     * @throws UnsupportedOperationException
+     *            if an aggregate is SUM_COUNT or SC_AVG
+     */
+    public MultiAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] whats) {
+        if (gbfields.length != gbfieldtypes.length)
+            throw new IllegalArgumentException("one type is needed per group-by field");
+        if (afields.length == 0 || afields.length != afieldtypes.length || afields.length != whats.length)
+            throw new IllegalArgumentException("one type and operator are needed per aggregate field");
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.whats = whats.clone();
+        this.intAggregates = new boolean[afields.length];
+        for (int a = 0; a < afields.length; a++) {
+            if (whats[a] == Op.SUM_COUNT || whats[a] == Op.SC_AVG)
+                throw new UnsupportedOperationException(whats[a] + " is not supported");
+            intAggregates[a] = afieldtypes[a] == Type.INT_TYPE;
+            if (!intAggregates[a] && whats[a] != Op.COUNT)
+                throw new IllegalArgumentException("only count is supported over " + afieldtypes[a]);
+        }
+        this.partialGbfields = new int[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            partialGbfields[i] = i;
+
+        accs = new long[INITIAL_GROUPS * whats.length * ACCS];
+        intKeys = new int[gbfields.length][];
+        fieldKeys = new Field[gbfields.length][];
+        for (int i = 0; i < gbfields.length; i++) {
+            if (gbfieldtypes[i] == Type.INT_TYPE)
+                intKeys[i] = new int[INITIAL_GROUPS];
+            else
+                fieldKeys[i] = new Field[INITIAL_GROUPS];
+        }
+        probeInts = new int[gbfields.length];
+        probeFields = new Field[gbfields.length];
+        slots = new int[INITIAL_GROUPS * 2];
+        if (gbfields.length == 0) {
+            // the single group exists even if no tuple is merged
+            newGroup();
+        }
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int base = group(tup, gbfields) * whats.length * ACCS;
+        for (int a = 0; a < whats.length; a++, base += ACCS) {
+            accs[base + 1]++;
+            if (!intAggregates[a])
+                continue;
+            long value = tup.getInt(afields[a]);
+            accs[base] += value;
+            if (value < accs[base + 2])
+                accs[base + 2] = value;
+            if (value > accs[base + 3])
+                accs[base + 3] = value;
+        }
+    }
+
+    /** @return the number of the group of tup, whose group values are the given fields */
+    private int group(Tuple tup, int[] fields) {
+        if (fields.length == 0)
+            return 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (intKeys[i] != null)
+                probeInts[i] = tup.getInt(fields[i]);
+            else
+                probeFields[i] = tup.getField(fields[i]);
+        }
+        return probeGroup();
+    }
+
+    /** @return the number of the group whose key is the probe key, adding it if new */
+    private int probeGroup() {
+        int h = 0;
+        for (int i = 0; i < gbfields.length; i++)
+            h = 31 * h + (intKeys[i] != null ? probeInts[i] : probeFields[i].hashCode());
+        int mask = slots.length - 1;
+        int s = spread(h) & mask;
+        while (slots[s] != 0) {
+            int g = slots[s] - 1;
+            if (probeMatches(g))
+                return g;
+            s = (s + 1) & mask;
+        }
+        int g = newGroup();
+        for (int i = 0; i < gbfields.length; i++) {
+            if (intKeys[i] != null)
+                intKeys[i][g] = probeInts[i];
+            else
+                fieldKeys[i][g] = probeFields[i];
+        }
+        slots[s] = g + 1;
+        growSlots();
+        return g;
+    }
+
+    private boolean probeMatches(int g) {
+        for (int i = 0; i < gbfields.length; i++) {
+            if (intKeys[i] != null ? intKeys[i][g] != probeInts[i] : !fieldKeys[i][g].equals(probeFields[i]))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return the hash of the key of group g, as {@link #probeGroup} computes it */
+    private int keyHash(int g) {
+        int h = 0;
+        for (int i = 0; i < gbfields.length; i++)
+            h = 31 * h + (intKeys[i] != null ? intKeys[i][g] : fieldKeys[i][g].hashCode());
+        return h;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Append an empty group, growing the arrays as needed; @return its number */
+    private int newGroup() {
+        int stride = whats.length * ACCS;
+        if ((numGroups + 1) * stride > accs.length) {
+            int n = numGroups * 2;
+            accs = Arrays.copyOf(accs, n * stride);
+            for (int i = 0; i < gbfields.length; i++) {
+                if (intKeys[i] != null)
+                    intKeys[i] = Arrays.copyOf(intKeys[i], n);
+                else
+                    fieldKeys[i] = Arrays.copyOf(fieldKeys[i], n);
+            }
+        }
+        int g = numGroups++;
+        for (int base = g * stride; base < (g + 1) * stride; base += ACCS) {
+            accs[base + 2] = Long.MAX_VALUE;
+            accs[base + 3] = Long.MIN_VALUE;
+        }
+        return g;
+    }
+
+    /** Double the slot table once it is half full. */
+    private void growSlots() {
+        if (numGroups * 2 <= slots.length)
+            return;
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int s = spread(keyHash(g)) & mask;
+            while (slots[s] != 0)
+                s = (s + 1) & mask;
+            slots[s] = g + 1;
+        }
+    }
+
+    /** @return the result of aggregate a for group g */
+    private int result(int g, int a) {
+        int base = (g * whats.length + a) * ACCS;
+        long count = accs[base + 1];
+        switch (whats[a]) {
+        case MIN:
+            return count == 0 ? 0 : (int) accs[base + 2];
+        case MAX:
+            return count == 0 ? 0 : (int) accs[base + 3];
+        case SUM:
+            return (int) accs[base];
+        case AVG:
+            return count == 0 ? 0 : (int) (accs[base] / count);
+        case COUNT:
+            return (int) count;
+        default:
+            throw new IllegalStateException("impossible to reach here");
+        }
+    }
+
+    /** @return the value of group field i of group g */
+    private Field key(int g, int i) {
+        return intKeys[i] != null ? new IntField(intKeys[i][g]) : fieldKeys[i][g];
+    }
+
+    /**
+     * {@inheritDoc} The state of a group is, for each aggregate, its sum,
+     * split into its high and low 32 bits, followed by its count, minimum
+     * and maximum.
+     */
+    public TupleDesc partialTupleDesc() {
+        Type[] types = new Type[gbfields.length + whats.length * PARTIAL_FIELDS];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfields.length);
+        return new TupleDesc(types);
+    }
+
+    public DbIterator partialIterator() {
+        TupleDesc ptd = partialTupleDesc();
+        List<Tuple> tupleList = new ArrayList<Tuple>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
+            Tuple t = new Tuple(ptd);
+            for (int i = 0; i < gbfields.length; i++)
+                t.setField(i, key(g, i));
+            int f = gbfields.length;
+            int base = g * whats.length * ACCS;
+            for (int a = 0; a < whats.length; a++, base += ACCS) {
+                t.setField(f++, new IntField((int) (accs[base] >>> 32)));
+                t.setField(f++, new IntField((int) accs[base]));
+                t.setField(f++, new IntField((int) accs[base + 1]));
+                t.setField(f++, new IntField((int) accs[base + 2]));
+                t.setField(f++, new IntField((int) accs[base + 3]));
+            }
+            tupleList.add(t);
+        }
+        return new TupleIterator(ptd, tupleList);
+    }
+
+    public void mergePartial(Tuple partial) {
+        int base = group(partial, partialGbfields) * whats.length * ACCS;
+        int f = gbfields.length;
+        for (int a = 0; a < whats.length; a++, base += ACCS, f += PARTIAL_FIELDS) {
+            long count = partial.getInt(f + 2);
+            if (count == 0)
+                continue;
+            accs[base] += ((long) partial.getInt(f) << 32) | (partial.getInt(f + 1) & 0xffffffffL);
+            accs[base + 1] += count;
+            accs[base + 2] = Math.min(accs[base + 2], partial.getInt(f + 3));
+            accs[base + 3] = Math.max(accs[base + 3], partial.getInt(f + 4));
+        }
+    }
+
+    public void merge(Aggregator other) {
+        if (!(other instanceof MultiAggregator))
+            throw new IllegalArgumentException("cannot merge a " + other.getClass().getSimpleName());
+        MultiAggregator o = (MultiAggregator) other;
+        if (!Arrays.equals(o.gbfieldtypes, gbfieldtypes) || !Arrays.equals(o.whats, whats))
+            throw new IllegalArgumentException("cannot merge aggregates of different groups or operators");
+        int stride = whats.length * ACCS;
+        for (int og = 0; og < o.numGroups; og++) {
+            for (int i = 0; i < gbfields.length; i++) {
+                if (intKeys[i] != null)
+                    probeInts[i] = o.intKeys[i][og];
+                else
+                    probeFields[i] = o.fieldKeys[i][og];
+            }
+            int base = (gbfields.length == 0 ? 0 : probeGroup()) * stride;
+            int obase = og * stride;
+            for (int k = 0; k < stride; k += ACCS) {
+                accs[base + k] += o.accs[obase + k];
+                accs[base + k + 1] += o.accs[obase + k + 1];
+                accs[base + k + 2] = Math.min(accs[base + k + 2], o.accs[obase + k + 2]);
+                accs[base + k + 3] = Math.max(accs[base + k + 3], o.accs[obase + k + 3]);
+            }
+        }
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    public long estimateBytes() {
+        long perGroup = (long) whats.length * AGGREGATE_BYTES + SLOT_BYTES;
+        for (int i = 0; i < gbfields.length; i++)
+            perGroup += intKeys[i] != null ? 4 : FIELD_OVERHEAD + gbfieldtypes[i].getLen();
+        return perGroup * numGroups;
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples hold the values of the group-by
+     *         fields, followed by the result of each aggregate in the order
+     *         given to the constructor
+     */
+    public DbIterator iterator() {
+        Type[] types = new Type[gbfields.length + whats.length];
+        Arrays.fill(types, Type.INT_TYPE);
+        System.arraycopy(gbfieldtypes, 0, types, 0, gbfields.length);
+        TupleDesc tdec = new TupleDesc(types);
+        List<Tuple> tupleList = new ArrayList<Tuple>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
+            Tuple t = new Tuple(tdec);
+            for (int i = 0; i < gbfields.length; i++)
+                t.setField(i, key(g, i));
+            for (int a = 0; a < whats.length; a++)
+                t.setField(gbfields.length + a, new IntField(result(g, a)));
+            tupleList.add(t);
+        }
+        return new TupleIterator(tdec, tupleList);
+    }
+}
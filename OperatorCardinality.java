@@ -25,9 +25,29 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof ParallelHashJoin) {
+            ParallelHashJoin j = (ParallelHashJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
@@ -45,8 +65,17 @@ public class OperatorCardinality {
                     childC = tableStats.get(
                             ((SeqScan) children[0]).getTableName())
                             .estimateTableCardinality(1.0);
+                } else if (children[0] instanceof BTreeScan) {
+                    childC = btreeScanCardinality((BTreeScan) children[0],
+                            tableStats);
                 }
             }
+            if (o instanceof TopN) {
+                childC = Math.min(childC, ((TopN) o).getN());
+            } else if (o instanceof Limit) {
+                Limit l = (Limit) o;
+                childC = Math.max(0, Math.min(l.getLimit(), childC - l.getOffset()));
+            }
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -82,13 +111,22 @@ public class OperatorCardinality {
                         ((SeqScan) child).getTableName())
                         .estimateTableCardinality(1.0) * selectivity) + 1);
                 return false;
+            } else if (child instanceof BTreeScan) {
+                f.setEstimatedCardinality((int) (btreeScanCardinality(
+                        (BTreeScan) child, tableStats) * selectivity) + 1);
+                return false;
             }
         }
         f.setEstimatedCardinality(1);
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    /**
+     * Shared by all the join operators, which differ only in how they
+     * compute the join.
+     */
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate jp, String joinField1Name, String joinField2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -98,11 +136,11 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -123,6 +161,8 @@ public class OperatorCardinality {
         } else if (child1 instanceof SeqScan) {
             child1Card = (int) (tableStats.get(((SeqScan) child1)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child1 instanceof BTreeScan) {
+            child1Card = btreeScanCardinality((BTreeScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -135,70 +175,29 @@ public class OperatorCardinality {
         } else if (child2 instanceof SeqScan) {
             child2Card = (int) (tableStats.get(((SeqScan) child2)
                     .getTableName()).estimateTableCardinality(1.0));
+        } else if (child2 instanceof BTreeScan) {
+            child2Card = btreeScanCardinality((BTreeScan) child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(jp
+                .getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-            Map<String, Integer> tableAliasToId,
+    /**
+     * @return the estimated number of tuples a BTreeScan returns, all of
+     *         the table's unless it has an index predicate
+     */
+    private static int btreeScanCardinality(BTreeScan s,
             Map<String, TableStats> tableStats) {
-
-        DbIterator[] children = j.getChildren();
-        DbIterator child1 = children[0];
-        DbIterator child2 = children[1];
-        int child1Card = 1;
-        int child2Card = 1;
-
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
-        String tableAlias1 = tmp1[0];
-        String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
-        String tableAlias2 = tmp2[0];
-        String pureFieldName2 = tmp2[1];
-
-        boolean child1HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias1))
-                .equals(pureFieldName1);
-        ;
-        boolean child2HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias2))
-                .equals(pureFieldName2);
-        ;
-
-        if (child1 instanceof Operator) {
-            Operator child1O = (Operator) child1;
-            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
-                    tableStats);
-            child1HasJoinPK = pk || child1HasJoinPK;
-            child1Card = child1O.getEstimatedCardinality();
-            child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        if (child2 instanceof Operator) {
-            Operator child2O = (Operator) child2;
-            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
-                    tableStats);
-            child2HasJoinPK = pk || child2HasJoinPK;
-            child2Card = child2O.getEstimatedCardinality();
-            child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
-                pureFieldName1, pureFieldName2, child1Card, child2Card,
-                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
-        return child1HasJoinPK || child2HasJoinPK;
+        TableStats stats = tableStats.get(s.getTableName());
+        IndexPredicate ipred = s.getIndexPredicate();
+        if (ipred == null)
+            return stats.estimateTableCardinality(1.0);
+        return stats.estimateTableCardinality(stats.estimateSelectivity(
+                s.keyField(), ipred.getOp(), ipred.getField()));
     }
 
     private static boolean updateAggregateCardinality(Aggregate a,
@@ -222,26 +221,32 @@ public class OperatorCardinality {
         if (child instanceof SeqScan) {
             childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
                     .estimateTableCardinality(1.0));
+        } else if (child instanceof BTreeScan) {
+            childCard = btreeScanCardinality((BTreeScan) child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // the number of groups is at most the product of the numbers of
+        // distinct values of the group fields
+        double groups = 1.0;
+        for (int i = 0; i < a.groupFields().length; i++) {
+            String[] tmp = a.groupFieldName(i).split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
 
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
         return hasJoinPK;
     }
 }
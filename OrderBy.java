@@ -3,18 +3,44 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields.
+ * <p>
+ * The sort is external: tuples are buffered up to a memory budget, and each
+ * time the budget is exceeded the buffered tuples are sorted and written out
+ * as a run, a {@link RunFile} of HeapPage-format pages. At the end the runs
+ * are merged through a loser tree, at most {@link #MAX_FAN_IN} at a time, so
+ * only one page per run is held in memory. If the input fits in the budget
+ * it is sorted in memory and no file is written. The sort is stable.
+ * <p>
+ * Buffered tuples are sorted on {@link SortKey}s, binary encodings of their
+ * sort fields, rather than by comparing their Fields.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget of the tuples buffered for sorting, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024 * 1024;
+    /** Most runs merged at once; more are first merged into longer runs. */
+    public static final int MAX_FAN_IN = 64;
+    /** Rough memory taken by a buffered tuple apart from its fields, in bytes. */
+    private static final int TUPLE_OVERHEAD = 64;
+
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
     private Iterator<Tuple> it;
     private boolean asc;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int runCount = 0;
+
+    /** The sorted runs, if the input did not fit in memory, and their merge. */
+    private transient ArrayList<RunFile> runs;
+    private transient Merge merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,21 +53,76 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: on the first,
+     * then among tuples equal on it on the second, and so on.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("one order is needed per sort field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = ascs[0];
     }
     
+    /** @return true if the sort order on the first field is ascending */
     public boolean isASC()
     {
 	return this.asc;
     }
     
+    /** @return the first, most significant, field sorted on */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
+    }
+
+    /** @return all the fields sorted on, most significant first */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields.clone();
+    }
+
+    /** @return for each field sorted on, true if its order is ascending */
+    public boolean[] getAscs()
+    {
+        return this.ascs.clone();
+    }
+
+    /**
+     * Set the number of bytes the tuples buffered for sorting may take
+     * before they are written out as a run. Must be called before the
+     * operator is opened.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /** @return the memory budget of the tuples buffered for sorting, in bytes */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk since this operator
+     *         was opened, counting those of intermediate merges
+     */
+    public int getRunCount() {
+        return runCount;
     }
     
     public String getOrderFieldName()
@@ -55,22 +136,120 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        clearRuns();
+        childTups.clear();
+        runCount = 0;
+        TupleComparator comparator = new TupleComparator(orderByFields, ascs);
+        SortKey sortKey = new SortKey(td, orderByFields, ascs);
+        long tupleBytes = estimateBytes(td, 1);
+        long bufferedBytes = 0;
+
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
+        // load the tuples in a collection, writing it out as a sorted run
+        // whenever it outgrows the budget
+        while (child.hasNext()) {
             childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            bufferedBytes += tupleBytes;
+            if (bufferedBytes > memoryBudget) {
+                writeRun(sortKey);
+                bufferedBytes = 0;
+            }
+        }
+        child.close();
+
+        if (runs == null) {
+            sortKey.sort(childTups);
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty())
+                writeRun(sortKey);
+            // merge consecutive runs in passes, keeping them in input order
+            // so that the sort stays stable, until they can be merged at once
+            while (runs.size() > MAX_FAN_IN) {
+                ArrayList<RunFile> merged = new ArrayList<RunFile>();
+                for (int i = 0; i < runs.size(); i += MAX_FAN_IN)
+                    merged.add(mergeRuns(runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN)), comparator));
+                runs = merged;
+            }
+            merge = new Merge(runs, comparator);
+        }
         super.open();
     }
 
+    /**
+     * @return a rough estimate of the memory card tuples with schema td take
+     *         when buffered for sorting, in bytes
+     */
+    static long estimateBytes(TupleDesc td, long card) {
+        return card * (td.getSize() + TUPLE_OVERHEAD);
+    }
+
+    /** Sort the buffered tuples and write them out as a new run. */
+    private void writeRun(SortKey sortKey) throws DbException {
+        sortKey.sort(childTups);
+        RunFile run = newRun();
+        for (Tuple t : childTups)
+            run.add(t);
+        run.finish();
+        childTups.clear();
+        runs.add(run);
+    }
+
+    /**
+     * Merge the given runs into one, deleting them.
+     * 
+     * @return the merged run, or the only run if there was just one
+     */
+    private RunFile mergeRuns(List<RunFile> group, TupleComparator comparator) throws DbException {
+        if (group.size() == 1)
+            return group.get(0);
+        RunFile merged = newRun();
+        Merge m = new Merge(group, comparator);
+        for (Tuple t = m.next(); t != null; t = m.next())
+            merged.add(t);
+        merged.finish();
+        m.close();
+        for (RunFile r : group)
+            r.delete();
+        return merged;
+    }
+
+    /** @return a new, empty run file, which is not added to runs */
+    private RunFile newRun() throws DbException {
+        if (runs == null)
+            runs = new ArrayList<RunFile>();
+        runCount++;
+        return new RunFile(td);
+    }
+
+    /** Delete the run files, closing their merge. */
+    private void clearRuns() {
+        if (merge != null) {
+            merge.close();
+            merge = null;
+        }
+        if (runs != null) {
+            for (RunFile r : runs)
+                r.delete();
+            runs = null;
+        }
+    }
+
     public void close() {
         super.close();
         it = null;
+        childTups.clear();
+        clearRuns();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs == null) {
+            it = childTups.iterator();
+        } else {
+            // the runs are kept until close, so only the merge restarts
+            merge.close();
+            merge = new Merge(runs, new TupleComparator(orderByFields, ascs));
+        }
     }
 
     /**
@@ -82,6 +261,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +279,76 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * Merge is a k-way merge of sorted runs through a loser tree. Each
+     * internal node of the tree holds the run that lost the match played
+     * there, and tree[0] the overall winner, so replacing the winner's head
+     * tuple replays only the matches on its path to the root: about log2(k)
+     * comparisons per output tuple. Ties go to the earlier run.
+     */
+    private static class Merge {
+        private final RunFile.Reader[] readers;
+        private final Tuple[] heads;
+        private final int[] tree;
+        private final int k;
+        private final Comparator<Tuple> comparator;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        Merge(List<RunFile> runs, Comparator<Tuple> comparator) throws DbException {
+            this.k = runs.size();
+            this.comparator = comparator;
+            readers = new RunFile.Reader[k];
+            heads = new Tuple[k];
+            tree = new int[k];
+            for (int i = 0; i < k; i++) {
+                readers[i] = runs.get(i).reader();
+                heads[i] = readers[i].next();
+            }
+            // k stands for a run that beats every other, so the first
+            // replay of each run settles the matches on its path
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                replay(i);
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+        /** @return true if run a's head comes out before run b's */
+        private boolean beats(int a, int b) {
+            if (a == k || b == k)
+                return a == k;
+            if (heads[a] == null || heads[b] == null)
+                return heads[b] == null && heads[a] != null;
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Replay the matches from run s up to the root, after its head changed. */
+        private void replay(int s) {
+            for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+                if (beats(tree[t], s)) {
+                    int loser = s;
+                    s = tree[t];
+                    tree[t] = loser;
+                }
+            }
+            tree[0] = s;
+        }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        /** @return the next tuple in the ordering, or null if the runs are exhausted */
+        Tuple next() throws DbException {
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            heads[w] = readers[w].next();
+            replay(w);
+            return t;
+        }
+
+        void close() {
+            for (RunFile.Reader r : readers) {
+                if (r != null)
+                    r.close();
+            }
+        }
     }
-    
+
 }
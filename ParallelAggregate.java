@@ -0,0 +1,289 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelAggregate computes an aggregate over a HeapFile in two phases. In
+ * the partial phase, the page range of the table is split recursively across
+ * a ForkJoinPool and every worker merges the tuples of its pages into an
+ * Aggregator of its own, so the workers share nothing while they scan. In
+ * the final phase, the partial aggregators are combined pairwise with
+ * {@link Aggregator#merge} as the tasks return, and the result is read from
+ * the one that is left.
+ * <p>
+ * Since the aggregators merge their partial states rather than their
+ * results, an AVG is carried as a sum and a count until the very end and
+ * comes out exactly as {@link Aggregate} would compute it. The output is
+ * that of an Aggregate over a SeqScan of the same table, in no defined order.
+ * The workers take page locks on behalf of the transaction, which holds them
+ * until it completes, as for any other scan.
+ */
+public class ParallelAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op aop;
+    private final int parallelism;
+    private Predicate[] filter = new Predicate[0];
+
+    private transient AtomicReference<Exception> failure;
+    private transient DbIterator results;
+
+    /**
+     * Constructor.
+     *
+     * @param tid
+     *            The transaction this aggregate is running as a part of.
+     * @param tableid
+     *            the table to aggregate, which must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @param parallelism
+     *            the number of worker threads to aggregate with
+     */
+    public ParallelAggregate(TransactionId tid, int tableid, String tableAlias,
+            int afield, int gfield, Aggregator.Op aop, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.aop = aop;
+        this.parallelism = parallelism;
+        // fail now, not on a worker, if the aggregator rejects aop
+        newAggregator();
+    }
+
+    /**
+     * Only aggregate tuples that pass all of the given predicates, which
+     * refer to fields of the table. Must be called before the aggregate is
+     * opened.
+     */
+    public void setFilter(Predicate... predicates) {
+        this.filter = predicates.clone();
+    }
+
+    /** @return the number of worker threads this aggregate uses */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return the alias of the table this operator aggregates */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /** @return the name of the table this operator aggregates */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a groupby, return the groupby
+     *         field index in the table; otherwise return
+     *         {@link Aggregator#NO_GROUPING}
+     */
+    public int groupField() {
+        return gfield;
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a group by, return the name
+     *         of the groupby field in the <b>OUTPUT</b> tuples; otherwise
+     *         return null
+     */
+    public String groupFieldName() {
+        if (gfield == Aggregator.NO_GROUPING)
+            return null;
+        return tableAlias + "." + tableTupleDesc().getFieldName(gfield);
+    }
+
+    /** @return the aggregate field */
+    public int aggregateField() {
+        return afield;
+    }
+
+    /** @return the name of the aggregate field in the table, prefixed by its alias */
+    public String aggregateFieldName() {
+        return tableAlias + "." + tableTupleDesc().getFieldName(afield);
+    }
+
+    /** @return the aggregate operator */
+    public Aggregator.Op aggregateOp() {
+        return aop;
+    }
+
+    private TupleDesc tableTupleDesc() {
+        return Database.getCatalog().getTupleDesc(tableid);
+    }
+
+    /** @return a new, empty aggregator for one worker */
+    private Aggregator newAggregator() {
+        TupleDesc td = tableTupleDesc();
+        Type gfieldType = gfield == Aggregator.NO_GROUPING ? null : td.getFieldType(gfield);
+        if (td.getFieldType(afield).equals(Type.INT_TYPE))
+            return new IntegerAggregator(gfield, gfieldType, afield, aop);
+        return new StringAggregator(gfield, gfieldType, afield, aop);
+    }
+
+    /**
+     * Returns the TupleDesc of this Aggregate, named as the output of an
+     * Aggregate over a SeqScan of the table would be.
+     */
+    public TupleDesc getTupleDesc() {
+        String agName = aop.toString() + aggregateFieldName();
+        if (gfield == Aggregator.NO_GROUPING)
+            return new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { agName });
+        return new TupleDesc(new Type[] { tableTupleDesc().getFieldType(gfield), Type.INT_TYPE },
+                new String[] { groupFieldName(), agName });
+    }
+
+    public void open() throws NoSuchElementException, DbException,
+            TransactionAbortedException {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new DbException("parallel aggregates are only supported on heap files");
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        int numPages = file.numPages();
+        // a few partitions per worker, so that workers that finish early
+        // can steal from the others
+        int grain = Math.max(1, numPages / (parallelism * 4));
+        failure = new AtomicReference<Exception>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Aggregator agtor;
+        try {
+            agtor = pool.invoke(new AggregateTask(0, numPages, grain));
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+            agtor = null;
+        } finally {
+            pool.shutdown();
+        }
+        rethrow(failure.get());
+        results = agtor.iterator();
+        results.open();
+        super.open();
+    }
+
+    private static void rethrow(Exception e) throws DbException, TransactionAbortedException {
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        DbException de = new DbException("parallel aggregate failed: " + e);
+        de.initCause(e);
+        throw de;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (results != null && results.hasNext())
+            return results.next();
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        results.rewind();
+    }
+
+    public void close() {
+        super.close();
+        if (results != null) {
+            results.close();
+            results = null;
+        }
+    }
+
+    /**
+     * Aggregates pages [lo, hi), splitting the range while it is bigger than
+     * grain and merging the aggregators of the two halves.
+     */
+    private class AggregateTask extends RecursiveTask<Aggregator> {
+        private static final long serialVersionUID = 1L;
+        private final int lo;
+        private final int hi;
+        private final int grain;
+
+        AggregateTask(int lo, int hi, int grain) {
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        protected Aggregator compute() {
+            if (hi - lo > grain) {
+                int mid = (lo + hi) >>> 1;
+                AggregateTask right = new AggregateTask(mid, hi, grain);
+                right.fork();
+                Aggregator agtor = new AggregateTask(lo, mid, grain).compute();
+                agtor.merge(right.join());
+                return agtor;
+            }
+            Aggregator agtor = newAggregator();
+            try {
+                scan(agtor);
+            } catch (Exception e) {
+                // the other workers see this and stop early
+                failure.compareAndSet(null, e);
+            }
+            return agtor;
+        }
+
+        private void scan(Aggregator agtor) throws DbException, TransactionAbortedException {
+            BufferPool bp = Database.getBufferPool();
+            HeapPage.Cursor cursor = null;
+            for (int p = lo; p < hi && failure.get() == null; p++) {
+                HeapPageId pid = new HeapPageId(tableid, p);
+                HeapPage page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_ONLY);
+                try {
+                    if (cursor == null)
+                        cursor = page.cursor();
+                    else
+                        cursor.reset(page);
+                    while (cursor.next()) {
+                        Tuple t = cursor.tuple();
+                        if (passes(t))
+                            agtor.mergeTupleIntoGroup(t);
+                    }
+                } finally {
+                    bp.unpinPage(pid);
+                }
+            }
+        }
+
+        private boolean passes(Tuple t) {
+            for (Predicate p : filter) {
+                if (!p.filter(t))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        // the table is read directly; there are no children
+    }
+}
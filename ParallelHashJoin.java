@@ -0,0 +1,453 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelHashJoin is an equality join that builds and probes its hash
+ * tables on several threads at once. Both children are hash-partitioned on
+ * their join fields into one partition per worker: the workers first build
+ * the hash tables of all partitions of the left (build) child concurrently,
+ * then probe them with chunks of the right (probe) child, each chunk split
+ * by partition so that every worker only touches its own tables.
+ * <p>
+ * The children themselves are read by a single driver thread, since
+ * DbIterators are not thread-safe. Joined tuples flow back to {@link #next}
+ * through a bounded queue, so the driver stops reading the probe child
+ * while the consumer falls behind. By default chunks are handed over in the
+ * order they finish; with {@link #setPreserveOrder} the output is in the
+ * order of the probe child, with the matches of each probe tuple in the
+ * order of the build child.
+ * <p>
+ * Unlike {@link HashEquiJoin}, the whole build side is kept in memory.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of probe tuples the driver hands out at a time. */
+    private static final int CHUNK_SIZE = 1024;
+    /** Number of probe chunks that may be in flight before the driver blocks. */
+    private static final int QUEUE_CHUNKS = 64;
+    /** Marks the end of the output in the queue. */
+    private static final ProbeChunk END = new ProbeChunk(new Tuple[0], 0);
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final int parallelism;
+    private boolean preserveOrder = false;
+
+    /** One hash table per partition of the build child, once built. */
+    private transient ArrayList<HashMap<Field, List<Tuple>>> tables;
+    private transient ForkJoinPool pool;
+    private transient ArrayBlockingQueue<ProbeChunk> queue;
+    private transient Semaphore inFlight;
+    private transient AtomicReference<Exception> failure;
+    private transient volatile boolean cancelled;
+    private transient ProbeChunk chunk;
+    private transient int chunkPos;
+    private transient Iterator<Tuple> matches;
+    private transient boolean done;
+
+    /** Probe tuples of one chunk, and the joined tuples produced for each. */
+    private static class ProbeChunk {
+        final Tuple[] probe;
+        final List<Tuple>[] out;
+        /** Partitions of this chunk still being probed. */
+        final AtomicInteger pending;
+        /** Released once every partition of this chunk is probed. */
+        final CountDownLatch probed;
+
+        @SuppressWarnings("unchecked")
+        ProbeChunk(Tuple[] probe, int partitions) {
+            this.probe = probe;
+            this.out = (List<Tuple>[]) new List<?>[probe.length];
+            this.pending = new AtomicInteger(partitions);
+            this.probed = new CountDownLatch(partitions == 0 ? 0 : 1);
+        }
+    }
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation, which is built into
+     *            the hash tables
+     * @param child2
+     *            Iterator for the right(inner) relation, which probes them
+     * @param parallelism
+     *            the number of worker threads, and of partitions
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, int parallelism) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash joins need an equality predicate");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Return joined tuples in the order of the probe child, rather than in
+     * the order the workers finish them. Must be called before the join is
+     * opened.
+     */
+    public void setPreserveOrder(boolean preserveOrder) {
+        this.preserveOrder = preserveOrder;
+    }
+
+    /** @return true if the output is in the order of the probe child */
+    public boolean getPreserveOrder() {
+        return preserveOrder;
+    }
+
+    /** @return the number of worker threads this join uses */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return the field name of join field1. Should be quantified by alias
+     *         or table name.
+     */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return the field name of join field2. Should be quantified by alias
+     *         or table name.
+     */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        tables = null;
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        child1.close();
+        child2.close();
+        tables = null;
+    }
+
+    /**
+     * Restarts the join. The hash tables of the build child are kept; only
+     * the probe child is read again.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        if (tables == null)
+            child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    /** Start the driver on a fresh queue. */
+    private void start() {
+        queue = new ArrayBlockingQueue<ProbeChunk>(QUEUE_CHUNKS + 1);
+        inFlight = new Semaphore(QUEUE_CHUNKS);
+        failure = new AtomicReference<Exception>();
+        cancelled = false;
+        done = false;
+        chunk = null;
+        matches = null;
+        // one thread for the driver, which mostly waits on the children
+        // and on the consumer
+        pool = new ForkJoinPool(parallelism + 1);
+        pool.execute(new DriverTask());
+    }
+
+    /** Cancel the driver and workers and wait for them to finish. */
+    private void stop() {
+        if (pool == null)
+            return;
+        cancelled = true;
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool = null;
+        queue = null;
+        chunk = null;
+        matches = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As for the other joins, a result is the concatenation of
+     * a tuple of the left child and a tuple of the right child.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (matches == null || !matches.hasNext()) {
+            matches = null;
+            if (chunk != null && chunkPos < chunk.probe.length) {
+                List<Tuple> out = chunk.out[chunkPos++];
+                if (out != null)
+                    matches = out.iterator();
+                continue;
+            }
+            if (done)
+                return null;
+            if (chunk != null) {
+                chunk = null;
+                inFlight.release();
+            }
+            ProbeChunk next;
+            try {
+                next = queue.take();
+                // unfinished chunks are only queued when the order is kept
+                next.probed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            }
+            rethrow(failure.get());
+            if (next == END) {
+                done = true;
+                return null;
+            }
+            chunk = next;
+            chunkPos = 0;
+        }
+        return matches.next();
+    }
+
+    private static void rethrow(Exception e) throws DbException, TransactionAbortedException {
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        DbException de = new DbException("parallel hash join failed: " + e);
+        de.initCause(e);
+        throw de;
+    }
+
+    /**
+     * Builds the hash tables if needed, then reads the probe child and hands
+     * out its chunks; marks the end of the output once all are probed.
+     */
+    private class DriverTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Chunks not yet finished, plus one for the driver itself; when the
+         * order is not kept, whoever brings the count to zero queues END.
+         */
+        private final AtomicInteger unfinished = new AtomicInteger(1);
+
+        protected void compute() {
+            try {
+                if (tables == null)
+                    build();
+                probe();
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            }
+            // the queue never fills up: it has room for every chunk that
+            // can be in flight, and END
+            if (preserveOrder)
+                queue.add(END);
+            else if (unfinished.decrementAndGet() == 0)
+                queue.add(END);
+        }
+
+        /** Called once every partition of c is probed. */
+        private void finished(ProbeChunk c) {
+            c.probed.countDown();
+            if (preserveOrder)
+                return;
+            queue.add(c);
+            if (unfinished.decrementAndGet() == 0)
+                queue.add(END);
+        }
+
+        private void build() throws DbException, TransactionAbortedException {
+            ArrayList<ArrayList<Tuple>> parts = new ArrayList<ArrayList<Tuple>>(parallelism);
+            for (int i = 0; i < parallelism; i++)
+                parts.add(new ArrayList<Tuple>());
+            while (child1.hasNext() && !cancelled) {
+                Tuple t = child1.next();
+                parts.get(partition(t.getField(p.getField1()))).add(t);
+            }
+            ArrayList<BuildTask> tasks = new ArrayList<BuildTask>(parallelism);
+            for (ArrayList<Tuple> part : parts)
+                tasks.add(new BuildTask(part));
+            invokeAll(tasks);
+            ArrayList<HashMap<Field, List<Tuple>>> built = new ArrayList<HashMap<Field, List<Tuple>>>(parallelism);
+            for (BuildTask task : tasks)
+                built.add(task.table);
+            if (!cancelled)
+                tables = built;
+        }
+
+        private void probe() throws DbException, TransactionAbortedException, InterruptedException {
+            while (!cancelled && failure.get() == null) {
+                ArrayList<Tuple> tuples = new ArrayList<Tuple>(CHUNK_SIZE);
+                while (tuples.size() < CHUNK_SIZE && child2.hasNext())
+                    tuples.add(child2.next());
+                if (tuples.isEmpty())
+                    return;
+                dispatch(tuples.toArray(new Tuple[tuples.size()]));
+            }
+        }
+
+        /** Split a chunk by partition and hand each part to a worker. */
+        private void dispatch(Tuple[] probe) throws InterruptedException {
+            int[][] rows = new int[parallelism][];
+            int[] counts = new int[parallelism];
+            int[] parts = new int[probe.length];
+            for (int k = 0; k < probe.length; k++) {
+                parts[k] = partition(probe[k].getField(p.getField2()));
+                counts[parts[k]]++;
+            }
+            int used = 0;
+            for (int i = 0; i < parallelism; i++) {
+                if (counts[i] > 0) {
+                    rows[i] = new int[counts[i]];
+                    counts[i] = 0;
+                    used++;
+                }
+            }
+            for (int k = 0; k < probe.length; k++)
+                rows[parts[k]][counts[parts[k]]++] = k;
+
+            while (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                if (cancelled)
+                    return;
+            }
+            ProbeChunk c = new ProbeChunk(probe, used);
+            unfinished.incrementAndGet();
+            if (preserveOrder)
+                queue.add(c);
+            for (int i = 0; i < parallelism; i++) {
+                if (rows[i] != null)
+                    new ProbeTask(c, tables.get(i), rows[i]).fork();
+            }
+        }
+
+        /** Builds the hash table of one partition of the build child. */
+        private class BuildTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final ArrayList<Tuple> tuples;
+            HashMap<Field, List<Tuple>> table;
+
+            BuildTask(ArrayList<Tuple> tuples) {
+                this.tuples = tuples;
+            }
+
+            protected void compute() {
+                table = new HashMap<Field, List<Tuple>>();
+                for (Tuple t : tuples) {
+                    Field key = t.getField(p.getField1());
+                    List<Tuple> list = table.get(key);
+                    if (list == null) {
+                        list = new ArrayList<Tuple>();
+                        table.put(key, list);
+                    }
+                    list.add(t);
+                }
+            }
+        }
+
+        /** Probes one partition's hash table with the given rows of a chunk. */
+        private class ProbeTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final ProbeChunk c;
+            private final HashMap<Field, List<Tuple>> table;
+            private final int[] rows;
+
+            ProbeTask(ProbeChunk c, HashMap<Field, List<Tuple>> table, int[] rows) {
+                this.c = c;
+                this.table = table;
+                this.rows = rows;
+            }
+
+            protected void compute() {
+                try {
+                    TupleDesc td = getTupleDesc();
+                    for (int k : rows) {
+                        if (cancelled)
+                            break;
+                        Tuple t2 = c.probe[k];
+                        List<Tuple> list = table.get(t2.getField(p.getField2()));
+                        if (list == null)
+                            continue;
+                        ArrayList<Tuple> out = new ArrayList<Tuple>(list.size());
+                        for (Tuple t1 : list)
+                            out.add(joinTuples(td, t1, t2));
+                        c.out[k] = out;
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    // the last partition of a chunk to finish hands it over
+                    if (c.pending.decrementAndGet() == 0)
+                        finished(c);
+                }
+            }
+        }
+    }
+
+    private int partition(Field key) {
+        return HashEquiJoin.partition(key, 0, parallelism);
+    }
+
+    private static Tuple joinTuples(TupleDesc td, Tuple t1, Tuple t2) {
+        int size1 = t1.getTupleDesc().numFields();
+        int size2 = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < size1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < size2; i++)
+            t.setField(i + size1, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
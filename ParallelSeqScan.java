@@ -0,0 +1,330 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ParallelSeqScan scans a HeapFile on several threads at once. The page
+ * range of the table is split recursively across a ForkJoinPool; each worker
+ * scans its pages, applies this operator's filter predicates and projection
+ * to every tuple, and hands the survivors in chunks to a bounded queue that
+ * {@link #next} reads from. The order of the output tuples is not defined.
+ * <p>
+ * Filters and projections pushed into the scan with {@link #setFilter} and
+ * {@link #setProjection} run on the workers, so an equivalent
+ * Filter/Project pipeline above a plain SeqScan gets the same parallelism.
+ * The workers take page locks on behalf of the scan's transaction, which
+ * holds them until it completes, as for any other scan.
+ */
+public class ParallelSeqScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples a worker hands over at a time. */
+    private static final int CHUNK_SIZE = 256;
+    /** Number of chunks that may wait in the queue before workers block. */
+    private static final int QUEUE_CHUNKS = 64;
+    /** Marks the end of the output in the queue. */
+    private static final List<Tuple> END = Collections.emptyList();
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final int parallelism;
+    private Predicate[] filter = new Predicate[0];
+    private int[] outFieldIds;
+    private TupleDesc td;
+
+    private transient ForkJoinPool pool;
+    private transient ArrayBlockingQueue<List<Tuple>> queue;
+    private transient AtomicReference<Exception> failure;
+    private transient volatile boolean cancelled;
+    private transient Iterator<Tuple> chunk;
+    private transient boolean done;
+
+    /**
+     * Creates a parallel scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be stored in a HeapFile.
+     * @param tableAlias
+     *            the alias of this table
+     * @param parallelism
+     *            the number of worker threads to scan with
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.parallelism = parallelism;
+        this.td = SeqScan.aliasedTupleDesc(tableid, tableAlias);
+    }
+
+    public ParallelSeqScan(TransactionId tid, int tableid, int parallelism) {
+        this(tid, tableid, Database.getCatalog().getTableName(tableid), parallelism);
+    }
+
+    /**
+     * Only return tuples that pass all of the given predicates, which refer
+     * to fields of the table. Must be called before the scan is opened.
+     */
+    public void setFilter(Predicate... predicates) {
+        this.filter = predicates.clone();
+    }
+
+    /**
+     * Return only the given fields of each tuple, as {@link Project} would.
+     * Must be called before the scan is opened.
+     *
+     * @param fieldList
+     *            The ids of the fields of the table to project out
+     * @param types
+     *            the types of the fields in the final projection
+     */
+    public void setProjection(ArrayList<Integer> fieldList, Type[] types) {
+        TupleDesc tabletd = Database.getCatalog().getTupleDesc(tableid);
+        outFieldIds = new int[fieldList.size()];
+        String[] fieldAr = new String[fieldList.size()];
+        for (int i = 0; i < fieldAr.length; i++) {
+            outFieldIds[i] = fieldList.get(i);
+            fieldAr[i] = tableAlias + "." + tabletd.getFieldName(outFieldIds[i]);
+        }
+        td = new TupleDesc(types, fieldAr);
+    }
+
+    /** @return the number of worker threads this scan uses */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /** @return the name of the table this operator scans */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new DbException("parallel scans are only supported on heap files");
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    /** Start the workers on a fresh queue. */
+    private void start() {
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        int numPages = file.numPages();
+        queue = new ArrayBlockingQueue<List<Tuple>>(QUEUE_CHUNKS);
+        failure = new AtomicReference<Exception>();
+        cancelled = false;
+        done = false;
+        chunk = null;
+        // a few partitions per worker, so that workers that finish early
+        // can steal from the others
+        int grain = Math.max(1, numPages / (parallelism * 4));
+        pool = new ForkJoinPool(parallelism);
+        pool.execute(new RootTask(file, numPages, grain));
+    }
+
+    /** Cancel the workers and wait for them to finish. */
+    private void stop() {
+        if (pool == null)
+            return;
+        cancelled = true;
+        queue.clear();
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(10, TimeUnit.MILLISECONDS))
+                queue.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool = null;
+        queue = null;
+        chunk = null;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (chunk == null || !chunk.hasNext()) {
+            if (done)
+                return null;
+            List<Tuple> next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            }
+            if (next == END) {
+                done = true;
+                rethrow(failure.get());
+                return null;
+            }
+            chunk = next.iterator();
+        }
+        return chunk.next();
+    }
+
+    private static void rethrow(Exception e) throws DbException, TransactionAbortedException {
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        DbException de = new DbException("parallel scan failed: " + e);
+        de.initCause(e);
+        throw de;
+    }
+
+    /** Put a chunk on the queue, giving up if the scan is cancelled. */
+    private void enqueue(List<Tuple> tuples) throws InterruptedException {
+        while (!cancelled) {
+            if (queue.offer(tuples, 10, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    /** Scans all pages, then marks the end of the output. */
+    private class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final HeapFile file;
+        private final int numPages;
+        private final int grain;
+
+        RootTask(HeapFile file, int numPages, int grain) {
+            this.file = file;
+            this.numPages = numPages;
+            this.grain = grain;
+        }
+
+        protected void compute() {
+            try {
+                new ScanTask(file, 0, numPages, grain).invoke();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+            try {
+                enqueue(END);
+            } catch (InterruptedException e) {
+                // cancelled; nobody is reading any more
+            }
+        }
+    }
+
+    /** Scans pages [lo, hi), splitting the range while it is bigger than grain. */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final HeapFile file;
+        private final int lo;
+        private final int hi;
+        private final int grain;
+
+        ScanTask(HeapFile file, int lo, int hi, int grain) {
+            this.file = file;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        protected void compute() {
+            if (hi - lo > grain) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ScanTask(file, lo, mid, grain), new ScanTask(file, mid, hi, grain));
+                return;
+            }
+            try {
+                scan();
+            } catch (Exception e) {
+                // the other workers see this and stop early
+                failure.compareAndSet(null, e);
+            }
+        }
+
+        private void scan() throws DbException, TransactionAbortedException, InterruptedException {
+            BufferPool bp = Database.getBufferPool();
+            List<Tuple> out = new ArrayList<Tuple>(CHUNK_SIZE);
+            HeapPage.Cursor cursor = null;
+            for (int p = lo; p < hi && !cancelled && failure.get() == null; p++) {
+                HeapPageId pid = new HeapPageId(tableid, p);
+                HeapPage page = (HeapPage) bp.pinPage(tid, pid, Permissions.READ_ONLY);
+                try {
+                    if (cursor == null)
+                        cursor = page.cursor();
+                    else
+                        cursor.reset(page);
+                    while (cursor.next()) {
+                        Tuple t = cursor.tuple();
+                        if (!passes(t))
+                            continue;
+                        out.add(copy(t));
+                        if (out.size() == CHUNK_SIZE) {
+                            enqueue(out);
+                            out = new ArrayList<Tuple>(CHUNK_SIZE);
+                        }
+                    }
+                } finally {
+                    bp.unpinPage(pid);
+                }
+            }
+            if (!out.isEmpty())
+                enqueue(out);
+        }
+
+        private boolean passes(Tuple t) {
+            for (Predicate p : filter) {
+                if (!p.filter(t))
+                    return false;
+            }
+            return true;
+        }
+
+        /** @return a stand-alone copy of the projected fields of a cursor tuple */
+        private Tuple copy(Tuple t) {
+            Tuple c = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                c.setField(i, t.getField(outFieldIds == null ? i : outFieldIds[i]));
+            c.setRecordId(t.getRecordId());
+            return c;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] {};
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        // a scan has no children
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -182,23 +184,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +205,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +216,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,30 +237,31 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        // all the aggregates are computed in one pass over their input
+        for (String groupByField : groupByFields) {
+            lp.addGroupBy(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,12 +270,77 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * A trailing LIMIT n [OFFSET m] clause, which Zql does not understand and
+     * so is stripped off the statement before Zql parses it.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)^(.*?)\\s+limit\\s+(\\d+)(?:\\s+offset\\s+(\\d+))?\\s*(;?)\\s*$");
+    /** LIMIT and OFFSET of the statement being processed; -1 for no limit. */
+    private int limit = -1;
+    private int offset = 0;
+
+    /**
+     * Remove a trailing LIMIT clause from statement s, remembering its limit
+     * and offset for the plan of the query.
+     *
+     * @return s without its LIMIT clause
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        offset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(2));
+            if (m.group(3) != null)
+                offset = Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range: " + s);
+        }
+        return m.group(1) + m.group(4);
+    }
+
+    /**
+     * @return the first statement of text, up to and including the first
+     *         ';' outside a quoted string, or all of text if it has none.
+     *         Zql reads only this statement, so only its LIMIT clause may
+     *         be stripped.
+     */
+    private static String firstStatement(String text) {
+        char quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                return text.substring(0, i + 1);
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Refuse a LIMIT clause on a statement other than a query, rather than
+     * run the statement on every row it matches.
+     */
+    private void checkLimit(ZStatement s) throws simpledb.ParsingException {
+        if (limit != -1 && !(s instanceof ZQuery))
+            throw new simpledb.ParsingException(
+                    "LIMIT and OFFSET are only supported on SELECT statements");
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setLimit(limit, offset);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +527,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(firstStatement(s)).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
+            checkLimit(stmt);
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                lp.setLimit(limit, offset);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -503,8 +567,16 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // read the statement up front, to take off a LIMIT clause; like
+            // Zql, only the first statement of the stream is processed
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) != -1;)
+                text.write(buf, 0, n);
+            String sql = stripLimit(firstStatement(text.toString("UTF-8")));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            checkLimit(s);
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -581,7 +653,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "limit", "offset" };
 
     public static void main(String argv[]) throws IOException {
 
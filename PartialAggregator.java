@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * An Aggregator whose per-group state can be taken out as tuples and merged
+ * back into another aggregator of the same kind. {@link Aggregate} uses this
+ * to spill partially aggregated groups to disk when they outgrow its memory
+ * budget, and to combine the spilled pieces afterwards.
+ */
+public interface PartialAggregator extends Aggregator {
+
+    /**
+     * @return the schema of the tuples of {@link #partialIterator}: the
+     *         group-by field, if there is grouping, followed by the fields
+     *         of the aggregate state
+     */
+    public TupleDesc partialTupleDesc();
+
+    /**
+     * @return a DbIterator over one tuple per group, holding the group's
+     *         value and its aggregate state so far
+     */
+    public DbIterator partialIterator();
+
+    /**
+     * Merge a tuple of the {@link #partialIterator} of another aggregator
+     * with the same constructor arguments into this one, as if the tuples
+     * it summarizes had been merged here.
+     */
+    public void mergePartial(Tuple partial);
+
+    /** @return the number of groups this aggregator holds */
+    public int numGroups();
+
+    /** @return a rough estimate of the memory the groups take up, in bytes */
+    public long estimateBytes();
+}
@@ -9,14 +9,46 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
+    static final String PARALLEL_HASH_JOIN = "⨝(parallel hash)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "o(top)";
+    static final String LIMIT = "limit";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
+    /** @return the label of a join operator, or null if o is not a join */
+    private static String joinLabel(Operator o) {
+        if (o instanceof Join)
+            return JOIN;
+        if (o instanceof HashEquiJoin)
+            return HASH_JOIN;
+        if (o instanceof SortMergeJoin)
+            return MERGE_JOIN;
+        if (o instanceof IndexNestedLoopJoin)
+            return INDEX_JOIN;
+        if (o instanceof ParallelHashJoin)
+            return PARALLEL_HASH_JOIN;
+        return null;
+    }
+
+    private static JoinPredicate joinPredicate(Operator o) {
+        if (o instanceof Join)
+            return ((Join) o).getJoinPredicate();
+        if (o instanceof HashEquiJoin)
+            return ((HashEquiJoin) o).getJoinPredicate();
+        if (o instanceof SortMergeJoin)
+            return ((SortMergeJoin) o).getJoinPredicate();
+        if (o instanceof ParallelHashJoin)
+            return ((ParallelHashJoin) o).getJoinPredicate();
+        return ((IndexNestedLoopJoin) o).getJoinPredicate();
+    }
+
     private int calculateQueryPlanTreeDepth(DbIterator root) {
         if (root == null)
             return 0;
@@ -26,7 +58,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (joinLabel(o) != null) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,17 +97,29 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else {
+                tableName = ((BTreeScan) queryPlan).getTableName();
+                alias = ((BTreeScan) queryPlan).getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
+            String index = "";
+            if (queryPlan instanceof BTreeScan) {
+                IndexPredicate ipred = ((BTreeScan) queryPlan).getIndexPredicate();
+                if (ipred != null)
+                    index = ",index:" + queryPlan.getTupleDesc().getFieldName(((BTreeScan) queryPlan).keyField())
+                            + ipred.getOp() + ipred.getField();
+            }
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)", SCAN, tableName + alias + index);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -107,18 +151,18 @@ public class QueryPlanVisualizer {
             Operator plan = (Operator) queryPlan;
             DbIterator[] children = plan.getChildren();
 
-            if (plan instanceof Join) {
-                Join j = (Join) plan;
-                TupleDesc td = j.getTupleDesc();
-                JoinPredicate jp = j.getJoinPredicate();
+            if (joinLabel(plan) != null) {
+                String label = joinLabel(plan);
+                TupleDesc td = plan.getTupleDesc();
+                JoinPredicate jp = joinPredicate(plan);
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", label,
+                        field1 + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
+                if (label.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = label.length() / 2;
 
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + adjustDepth + 3, children[0],
@@ -128,35 +172,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
-                        thisNode.textStartPosition + thisNode.text.length()
-                                - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
-                thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
-                int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[0],
-                        currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-                thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - label.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -171,15 +187,27 @@ public class QueryPlanVisualizer {
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                Aggregator.Op[] aops = a.aggregateOps();
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < aops.length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(String.format("%1$s(%2$s)", aops[i], a.aggregateFieldName(i)));
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int i = 0; i < a.groupFields().length; i++) {
+                        if (i > 0)
+                            groups.append(",");
+                        groups.append(a.groupFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -217,22 +245,53 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof OrderBy) {
-                OrderBy o = (OrderBy) plan;
+            } else if (plan instanceof OrderBy || plan instanceof TopN) {
+                boolean top = plan instanceof TopN;
+                int[] oFields = top ? ((TopN) plan).getOrderByFields()
+                        : ((OrderBy) plan).getOrderByFields();
+                boolean[] ascs = top ? ((TopN) plan).getAscs()
+                        : ((OrderBy) plan).getAscs();
+                String label = top ? TOPN : ORDERBY;
+                String keys = "";
+                for (int i = 0; i < oFields.length; i++) {
+                    if (i > 0)
+                        keys += ",";
+                    keys += children[0].getTupleDesc().getFieldName(oFields[i]);
+                    if (!ascs[i])
+                        keys += " desc";
+                }
+                if (top)
+                    keys += ";" + ((TopN) plan).getN();
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
-                        ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        label, keys, plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (label.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = label.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - label.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d,%3$d),card:%4$d",
+                        LIMIT, l.getLimit(), l.getOffset(), l.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (ORDERBY.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = ORDERBY.length() / 2;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
                 SubTreeDescriptor child = this.buildTree(queryPlanDepth,
                         currentDepth + 2 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
                 thisNode.upBarPosition = child.upBarPosition;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - ORDERBY.length() / 2;
+                        - LIMIT.length() / 2;
                 thisNode.width = Math.max(child.width,
                         thisNode.textStartPosition + thisNode.text.length()
                                 - currentStartPosition);
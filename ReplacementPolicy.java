@@ -0,0 +1,62 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every admission, hit and
+ * removal to the policy, and the policy keeps whatever per-page reference
+ * metadata it needs to rank pages for eviction.
+ * <p>
+ * The BufferPool may veto candidates (for example dirty pages, which cannot
+ * be evicted under NO STEAL), so {@link #chooseVictim} is handed a
+ * {@link VictimFilter} and must return the best page the filter accepts.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ *
+ * @see BufferPool
+ * @see ClockPolicy
+ * @see LRUKPolicy
+ * @see TwoQueuePolicy
+ */
+public interface ReplacementPolicy {
+
+    /** Name of the system property used to pick the default policy. */
+    public static final String POLICY_PROPERTY = "simpledb.BufferPool.policy";
+
+    /**
+     * Lets the BufferPool reject eviction candidates that are still in use.
+     */
+    public interface VictimFilter {
+        /** @return true if pid may be evicted right now */
+        public boolean isEvictable(PageId pid);
+    }
+
+    /**
+     * Called when a page is brought into the buffer pool.
+     *
+     * @param pid the id of the page that became resident
+     */
+    public void pageAdmitted(PageId pid);
+
+    /**
+     * Called when a request is served by a page that is already resident.
+     *
+     * @param pid the id of the page that was referenced
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Called when a page leaves the buffer pool for any reason other than
+     * being chosen by {@link #chooseVictim}, e.g. when it is discarded.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Pick a resident page to evict and stop tracking it as resident.
+     *
+     * @param filter decides whether a given candidate may be evicted
+     * @return the page to evict, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(VictimFilter filter);
+}
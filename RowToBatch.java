@@ -0,0 +1,61 @@
+package simpledb;
+
+/**
+ * RowToBatch lets a row operator feed a batch mode subtree: it packs the
+ * tuples of its child into batches.
+ */
+public class RowToBatch implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int batchSize;
+    private transient TupleBatch batch;
+
+    /**
+     * @param child
+     *            The row operator to read tuples from
+     * @param batchSize
+     *            the maximum number of rows per batch
+     */
+    public RowToBatch(DbIterator child, int batchSize) {
+        this.child = child;
+        this.batchSize = batchSize;
+    }
+
+    public RowToBatch(DbIterator child) {
+        this(child, TupleBatch.DEFAULT_SIZE);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        if (batch == null)
+            batch = new TupleBatch(getTupleDesc(), batchSize);
+    }
+
+    public void close() {
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("Operator not yet open");
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.append(child.next());
+        return batch.size() == 0 ? null : batch;
+    }
+
+    /** @return the child of this operator */
+    public DbIterator getChild() {
+        return child;
+    }
+}
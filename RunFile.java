@@ -0,0 +1,255 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * RunFile is a temporary file holding a run of tuples, written by an external
+ * sort such as {@link OrderBy}. The file is a sequence of pages in the
+ * {@link HeapPage} format, with the used slots of each page in front, so the
+ * run is read back a page at a time through a {@link HeapPage.Cursor}.
+ * Tuples are appended with {@link #add} and read back, in the order they
+ * were added, through a {@link Reader}; the file is removed by
+ * {@link #delete}, or when the JVM exits. Once written, a run is closed with
+ * {@link #finish}.
+ * <p>
+ * I/O errors are reported as DbExceptions, as for a {@link SpillFile}.
+ */
+public class RunFile {
+
+    /** Table id of the pages of a run, which belong to no table. */
+    private static final int NO_TABLE = -1;
+    /** Size of the write buffer of a run, in pages. */
+    private static final int BUFFER_PAGES = 16;
+
+    private final TupleDesc td;
+    private final File file;
+    private final int slotsPerPage;
+    private OutputStream out;
+    private boolean deleted = false;
+    /** Tuples of the page being filled. */
+    private final ArrayList<Tuple> page;
+    /** The image of the page being written, which fields are serialized into. */
+    private final PageImage image = new PageImage();
+    private final DataOutputStream imageOut = new DataOutputStream(image);
+    private final ByteBuffer imageBuffer = ByteBuffer.wrap(image.bytes);
+    private int count = 0;
+    private int numPages = 0;
+
+    /**
+     * Create an empty run file for tuples with the given schema.
+     */
+    public RunFile(TupleDesc td) throws DbException {
+        this.td = td;
+        this.slotsPerPage = HeapPage.slotsPerPage(td);
+        if (slotsPerPage < 1)
+            throw new DbException("tuples of " + td.getSize() + " bytes do not fit on a page");
+        this.page = new ArrayList<Tuple>(slotsPerPage);
+        try {
+            file = File.createTempFile("simpledb-run", ".tmp");
+            file.deleteOnExit();
+            out = new BufferedOutputStream(new FileOutputStream(file),
+                    BUFFER_PAGES * BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new DbException("could not create run file: " + e.getMessage());
+        }
+    }
+
+    /** @return the schema of the tuples in this file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added to this file */
+    public int size() {
+        return count;
+    }
+
+    /** @return the number of pages written to this file so far */
+    public int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Append a tuple to this file. The tuple is only referenced until the
+     * page it goes to is written.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("run file has been " + (deleted ? "deleted" : "finished"));
+        page.add(t);
+        count++;
+        if (page.size() == slotsPerPage)
+            writePage();
+    }
+
+    /** Write out the page being filled, with its tuples in the first slots. */
+    private void writePage() throws DbException {
+        if (page.isEmpty())
+            return;
+        try {
+            int headerSize = HeapPage.headerSize(td);
+            int n = page.size();
+            byte[] bytes = image.bytes;
+            Arrays.fill(bytes, (byte) 0);
+            for (int i = 0; i < headerSize; i++) {
+                int used = Math.max(0, Math.min(8, n - i * 8));
+                bytes[i] = (byte) ((1 << used) - 1);
+            }
+            int slot = headerSize;
+            for (Tuple t : page) {
+                for (int i = 0; i < td.numFields(); i++)
+                    writeField(t.getField(i), slot + td.getFieldOffset(i));
+                slot += td.getSize();
+            }
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new DbException("could not write run file " + file + ": " + e.getMessage());
+        }
+        page.clear();
+        numPages++;
+    }
+
+    /**
+     * Serialize f into the image of the page being written at offset.
+     * INT_TYPE and STRING_TYPE fields are encoded here as their serialize
+     * methods would encode them, since those write a string's padding a byte
+     * at a time; the image is zeroed beforehand, so padding is left as is.
+     */
+    private void writeField(Field f, int offset) throws IOException {
+        if (f instanceof IntField) {
+            imageBuffer.putInt(offset, ((IntField) f).getValue());
+        } else if (f instanceof StringField) {
+            String s = ((StringField) f).getValue();
+            int len = Math.min(s.length(), Type.STRING_LEN);
+            imageBuffer.putInt(offset, len);
+            for (int j = 0; j < len; j++)
+                image.bytes[offset + 4 + j] = (byte) s.charAt(j);
+        } else {
+            image.pos = offset;
+            f.serialize(imageOut);
+        }
+    }
+
+    /**
+     * Write out the last page and close the file for writing, so that runs
+     * waiting to be merged do not hold file handles. No tuple may be added
+     * afterwards.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        writePage();
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write run file " + file + ": " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * @return a reader over the tuples of the run, which is finished first
+     *         if need be
+     */
+    public Reader reader() throws DbException {
+        if (deleted)
+            throw new IllegalStateException("run file has been deleted");
+        finish();
+        return new Reader(numPages);
+    }
+
+    /** Remove the file from disk. */
+    public void delete() {
+        deleted = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is going away anyway
+            }
+            out = null;
+        }
+        page.clear();
+        file.delete();
+    }
+
+    /** A page-sized buffer that other fields are serialized into. */
+    private static class PageImage extends OutputStream {
+        final byte[] bytes = new byte[BufferPool.getPageSize()];
+        int pos;
+
+        @Override
+        public void write(int b) {
+            bytes[pos++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, bytes, pos, len);
+            pos += len;
+        }
+    }
+
+    /**
+     * Reader reads the tuples of a run back, one page in memory at a time.
+     */
+    public class Reader {
+        private DataInputStream in;
+        private final byte[] image = new byte[BufferPool.getPageSize()];
+        private int pagesLeft;
+        private int pageNo = 0;
+        private HeapPage.Cursor cursor;
+
+        private Reader(int numPages) throws DbException {
+            this.pagesLeft = numPages;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                        BufferPool.getPageSize()));
+            } catch (IOException e) {
+                throw new DbException("could not read run file " + file + ": " + e.getMessage());
+            }
+        }
+
+        /**
+         * @return a stand-alone copy of the next tuple of the run, or null
+         *         if there are no more
+         */
+        public Tuple next() throws DbException {
+            while (cursor == null || !cursor.next()) {
+                if (pagesLeft == 0)
+                    return null;
+                HeapPage p;
+                try {
+                    in.readFully(image);
+                    p = new HeapPage(new HeapPageId(NO_TABLE, pageNo++), td, ByteBuffer.wrap(image));
+                } catch (IOException e) {
+                    throw new DbException("could not read run file " + file + ": " + e.getMessage());
+                }
+                pagesLeft--;
+                if (cursor == null)
+                    cursor = p.cursor();
+                else
+                    cursor.reset(p);
+            }
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, cursor.getField(i));
+            return t;
+        }
+
+        /** Release the file; the reader must not be used afterwards. */
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written through this stream
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -14,7 +14,13 @@ public class SeqScan implements DbIterator {
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
+    private int readAhead = 0;
     private DbFileIterator tupleIterator;
+    private TupleDesc td;
+    private int keyField;
+    private BloomFilter keyFilter;
+    /** The next tuple that passed the key filter, when the file cannot apply it. */
+    private Tuple nextPassed;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -37,7 +43,77 @@ public class SeqScan implements DbIterator {
     	this.tid = tid;
     	this.tableid = tableid;
     	this.tableAlias = tableAlias;
-    	tupleIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+    	tupleIterator = createIterator();
+    	td = aliasedTupleDesc(tableid, tableAlias);
+    }
+
+    /**
+     * @return the TupleDesc of table tableid with field names prefixed by
+     *         tableAlias, as returned by the scans of that table
+     */
+    static TupleDesc aliasedTupleDesc(int tableid, String tableAlias) {
+    	TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableid);
+    	Type[] types = new Type[tableTd.numFields()];
+    	String[] names = new String[tableTd.numFields()];
+    	for (int i = 0; i < types.length; i++) {
+    		types[i] = tableTd.getFieldType(i);
+    		names[i] = tableAlias + "." + tableTd.getFieldName(i);
+    	}
+    	return new TupleDesc(types, names);
+    }
+
+    private DbFileIterator createIterator() {
+    	DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+    	DbFileIterator it;
+    	if (file instanceof HeapFile) {
+    		it = ((HeapFile) file).iterator(tid, readAhead);
+    		((HeapFile.HeapFileIterator) it).setKeyFilter(keyField, keyFilter);
+    	} else {
+    		it = file.iterator(tid);
+    	}
+    	return it;
+    }
+
+    /**
+     * Only return tuples whose field keyField might be in filter; a null
+     * filter returns all tuples again. On heap files the other tuples are
+     * skipped before they are materialized. Joins use this to pass the keys
+     * of one input down to the scan of the other; it should be called
+     * before the scan is opened, since it may not apply to the page the scan
+     * is on.
+     *
+     * @param keyField the field of the table to test
+     * @param filter the values the field may have, or null
+     */
+    public void setKeyFilter(int keyField, BloomFilter filter) {
+    	this.keyField = keyField;
+    	this.keyFilter = filter;
+    	if (tupleIterator instanceof HeapFile.HeapFileIterator) {
+    		((HeapFile.HeapFileIterator) tupleIterator).setKeyFilter(keyField, filter);
+    	}
+    }
+
+    /** @return the filter set by {@link #setKeyFilter}, or null */
+    public BloomFilter getKeyFilter() {
+    	return keyFilter;
+    }
+
+    /**
+     * Have this scan read up to pages pages ahead of the one it is on, so
+     * that disk reads overlap with the work done by the operators above.
+     * Only heap files support read-ahead; for other files this is ignored.
+     * Must be called before the scan is opened.
+     *
+     * @param pages the read-ahead window in pages; 0 turns read-ahead off
+     */
+    public void setReadAhead(int pages) {
+    	this.readAhead = pages;
+    	tupleIterator = createIterator();
+    }
+
+    /** @return the read-ahead window of this scan, in pages */
+    public int getReadAhead() {
+    	return readAhead;
     }
 
     /**
@@ -58,6 +134,16 @@ public class SeqScan implements DbIterator {
         return tableAlias;
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the transaction this scan is running as a part of */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -74,6 +160,9 @@ public class SeqScan implements DbIterator {
         // some code goes here
     	this.tableid = tableid;
     	this.tableAlias = tableAlias;
+    	this.keyFilter = null;
+    	tupleIterator = createIterator();
+    	td = aliasedTupleDesc(tableid, tableAlias);
     }
 
     public SeqScan(TransactionId tid, int tableid) {
@@ -82,6 +171,7 @@ public class SeqScan implements DbIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+    	nextPassed = null;
     	tupleIterator.open();
     }
 
@@ -97,8 +187,7 @@ public class SeqScan implements DbIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-    	// TupleDesc desc = Database.getCatalog().getTupleDesc(tableid);   	
-        return Database.getCatalog().getTupleDesc(tableid);
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -106,13 +195,30 @@ public class SeqScan implements DbIterator {
         if(tupleIterator == null) {
         	return false;
         }
-        return tupleIterator.hasNext();
+        if (keyFilter == null || tupleIterator instanceof HeapFile.HeapFileIterator) {
+        	return tupleIterator.hasNext();
+        }
+        while (nextPassed == null && tupleIterator.hasNext()) {
+        	Tuple t = tupleIterator.next();
+        	if (keyFilter.mightContain(t.getField(keyField))) {
+        		nextPassed = t;
+        	}
+        }
+        return nextPassed != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return tupleIterator.next();
+        if (keyFilter == null || tupleIterator instanceof HeapFile.HeapFileIterator) {
+        	return tupleIterator.next();
+        }
+        if (!hasNext()) {
+        	throw new NoSuchElementException();
+        }
+        Tuple t = nextPassed;
+        nextPassed = null;
+        return t;
     }
 
     public void close() {
@@ -123,6 +229,7 @@ public class SeqScan implements DbIterator {
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+    	nextPassed = null;
     	tupleIterator.rewind();
     }
 }
@@ -0,0 +1,285 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortKey encodes the sort fields of a tuple into a normalized binary key:
+ * a fixed number of longs that compare, as unsigned words in order, the way
+ * a {@link TupleComparator} on the same fields compares the tuples. Sorting
+ * on the keys needs no Field dispatch at all.
+ * <p>
+ * Each field is encoded into a fixed-width, order-preserving byte string,
+ * and the strings are concatenated and packed big-endian into the words:
+ * <ul>
+ * <li>an INT_TYPE field is its value with the sign bit flipped, in 4 bytes;</li>
+ * <li>a STRING_TYPE field is its chars, 2 bytes each, padded with zeros to
+ * {@link Type#STRING_LEN} chars, followed by its length in 2 bytes, so a
+ * string sorts before any string it is a prefix of.</li>
+ * </ul>
+ * A descending field has all its bytes inverted.
+ * <p>
+ * {@link #sort} sorts tuples on their keys. A single INT_TYPE key is packed
+ * with the row number into one long, and the longs are sorted as
+ * primitives; wider keys are sorted by a merge sort of row numbers that
+ * compares their words. Either way the sort is stable. Since the keys of
+ * one sort only need to be comparable with each other, it pads strings
+ * only to the longest string sorted, and uses 1 byte per char if all the
+ * chars fit in one.
+ * <p>
+ * The encoding is shared by everything that sorts on fields: {@link OrderBy},
+ * the block sort of {@link IndexNestedLoopJoin} and the bulk loading of a
+ * {@link BTreeFile} by {@link BTreeFileEncoder}.
+ */
+public class SortKey {
+
+    private final int[] fields;
+    private final boolean[] ascs;
+    private final Type[] types;
+    /** For each STRING_TYPE field, the chars it is padded to and bytes per char. */
+    private final int[] chars;
+    private final int[] charBytes;
+    /** Offset of each field's encoding in the key, in bytes. */
+    private final int[] offsets;
+    private final int words;
+    /** Scratch space a key is encoded into before it is packed into words. */
+    private final byte[] bytes;
+
+    /**
+     * Create the key of tuples with schema td on the given fields.
+     *
+     * @param fields
+     *            the fields sorted on, most significant first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @throws IllegalArgumentException
+     *             if a field has a type that cannot be encoded
+     */
+    public SortKey(TupleDesc td, int[] fields, boolean[] ascs) {
+        this(fields, ascs, fieldTypes(td, fields), null, null);
+    }
+
+    public SortKey(TupleDesc td, int field, boolean asc) {
+        this(td, new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Create a key whose STRING_TYPE fields are padded to the given numbers
+     * of chars, of the given numbers of bytes each; null stands for
+     * {@link Type#STRING_LEN} chars of 2 bytes.
+     */
+    private SortKey(int[] fields, boolean[] ascs, Type[] types, int[] chars, int[] charBytes) {
+        if (fields.length == 0 || fields.length != ascs.length)
+            throw new IllegalArgumentException("one order is needed per sort field");
+        this.fields = fields.clone();
+        this.ascs = ascs.clone();
+        this.types = types;
+        this.offsets = new int[fields.length];
+        this.chars = new int[fields.length];
+        this.charBytes = new int[fields.length];
+        int width = 0;
+        for (int i = 0; i < fields.length; i++) {
+            offsets[i] = width;
+            if (types[i] == Type.INT_TYPE) {
+                width += 4;
+            } else if (types[i] == Type.STRING_TYPE) {
+                this.chars[i] = chars == null ? Type.STRING_LEN : chars[i];
+                this.charBytes[i] = charBytes == null ? 2 : charBytes[i];
+                width += this.chars[i] * this.charBytes[i] + 2;
+            } else {
+                throw new IllegalArgumentException("cannot sort on fields of type " + types[i]);
+            }
+        }
+        this.words = (width + 7) / 8;
+        this.bytes = new byte[words * 8];
+    }
+
+    private static Type[] fieldTypes(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            types[i] = td.getFieldType(fields[i]);
+        return types;
+    }
+
+    /** @return the number of longs a key takes */
+    public int words() {
+        return words;
+    }
+
+    /**
+     * Encode the key of t into dst[off..off+words()).
+     *
+     * @return false if t has a string that does not fit this key, in which
+     *         case dst is left as is
+     */
+    public boolean encode(Tuple t, long[] dst, int off) {
+        Arrays.fill(bytes, (byte) 0);
+        for (int i = 0; i < fields.length; i++) {
+            int pos = offsets[i];
+            int end;
+            if (types[i] == Type.INT_TYPE) {
+                int v = ((IntField) t.getField(fields[i])).getValue() ^ Integer.MIN_VALUE;
+                bytes[pos] = (byte) (v >>> 24);
+                bytes[pos + 1] = (byte) (v >>> 16);
+                bytes[pos + 2] = (byte) (v >>> 8);
+                bytes[pos + 3] = (byte) v;
+                end = pos + 4;
+            } else {
+                String s = ((StringField) t.getField(fields[i])).getValue();
+                int len = s.length();
+                if (len > chars[i])
+                    return false;
+                if (charBytes[i] == 1) {
+                    for (int j = 0; j < len; j++) {
+                        char c = s.charAt(j);
+                        if (c > 0xff)
+                            return false;
+                        bytes[pos + j] = (byte) c;
+                    }
+                } else {
+                    for (int j = 0; j < len; j++) {
+                        char c = s.charAt(j);
+                        bytes[pos + 2 * j] = (byte) (c >>> 8);
+                        bytes[pos + 2 * j + 1] = (byte) c;
+                    }
+                }
+                end = pos + chars[i] * charBytes[i] + 2;
+                bytes[end - 2] = (byte) (len >>> 8);
+                bytes[end - 1] = (byte) len;
+            }
+            if (!ascs[i]) {
+                for (int j = pos; j < end; j++)
+                    bytes[j] = (byte) ~bytes[j];
+            }
+        }
+        for (int w = 0; w < words; w++) {
+            long word = 0;
+            for (int j = 0; j < 8; j++)
+                word = (word << 8) | (bytes[8 * w + j] & 0xff);
+            dst[off + w] = word;
+        }
+        return true;
+    }
+
+    /**
+     * Compare the keys at a[aoff..] and b[boff..], each of the given number
+     * of words.
+     *
+     * @return a negative number, zero or a positive number as the first key
+     *         sorts before, equal to or after the second
+     */
+    public static int compare(long[] a, int aoff, long[] b, int boff, int words) {
+        for (int w = 0; w < words; w++) {
+            int c = Long.compareUnsigned(a[aoff + w], b[boff + w]);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    /**
+     * Sort the tuples on their keys, in place and stably. Tuples that cannot
+     * be encoded are sorted with a {@link TupleComparator} instead.
+     */
+    public void sort(List<Tuple> tuples) {
+        int n = tuples.size();
+        if (n < 2)
+            return;
+        Tuple[] rows = tuples.toArray(new Tuple[n]);
+        int[] order = sortedOrder(rows);
+        if (order == null) {
+            Collections.sort(tuples, new TupleComparator(fields, ascs));
+            return;
+        }
+        for (int i = 0; i < n; i++)
+            tuples.set(i, rows[order[i]]);
+    }
+
+    /**
+     * @return the indexes of rows in sorted order, or null if a row cannot
+     *         be encoded
+     */
+    private int[] sortedOrder(Tuple[] rows) {
+        int n = rows.length;
+        int[] order = new int[n];
+        if (fields.length == 1 && types[0] == Type.INT_TYPE) {
+            // the key in the high half and the row in the low half, so the
+            // longs sort by key and then by row
+            long[] packed = new long[n];
+            for (int i = 0; i < n; i++) {
+                int v = ((IntField) rows[i].getField(fields[0])).getValue();
+                packed[i] = ((long) (ascs[0] ? v : ~v) << 32) | i;
+            }
+            Arrays.sort(packed);
+            for (int i = 0; i < n; i++)
+                order[i] = (int) packed[i];
+            return order;
+        }
+        SortKey key = narrowed(rows);
+        if (key == null)
+            return null;
+        int words = key.words;
+        long[] keys = new long[n * words];
+        for (int i = 0; i < n; i++) {
+            key.encode(rows[i], keys, i * words);
+            order[i] = i;
+        }
+        key.mergeSort(order, new int[n], 0, n, keys);
+        return order;
+    }
+
+    /**
+     * @return a key like this one whose strings are padded only as far as
+     *         the rows need, or null if a row has a string too long for
+     *         this key
+     */
+    private SortKey narrowed(Tuple[] rows) {
+        int[] maxChars = new int[fields.length];
+        int[] maxChar = new int[fields.length];
+        for (Tuple t : rows) {
+            for (int i = 0; i < fields.length; i++) {
+                if (types[i] != Type.STRING_TYPE)
+                    continue;
+                String s = ((StringField) t.getField(fields[i])).getValue();
+                if (s.length() > chars[i])
+                    return null;
+                maxChars[i] = Math.max(maxChars[i], s.length());
+                for (int j = 0; j < s.length(); j++)
+                    maxChar[i] = Math.max(maxChar[i], s.charAt(j));
+            }
+        }
+        int[] charBytes = new int[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            charBytes[i] = maxChar[i] > 0xff ? 2 : 1;
+        return new SortKey(fields, ascs, types, maxChars, charBytes);
+    }
+
+    /** Sort order[lo, hi) on the keys of the rows, using tmp as scratch space. */
+    private void mergeSort(int[] order, int[] tmp, int lo, int hi, long[] keys) {
+        if (hi - lo <= 16) {
+            // insertion sort; it only moves a row past rows with greater keys
+            for (int i = lo + 1; i < hi; i++) {
+                int r = order[i];
+                int j = i;
+                while (j > lo && compare(keys, order[j - 1] * words, keys, r * words, words) > 0) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = r;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(order, tmp, lo, mid, keys);
+        mergeSort(order, tmp, mid, hi, keys);
+        if (compare(keys, order[mid - 1] * words, keys, order[mid] * words, words) <= 0)
+            return;
+        System.arraycopy(order, lo, tmp, lo, hi - lo);
+        int i = lo, j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && compare(keys, tmp[i] * words, keys, tmp[j] * words, words) <= 0))
+                order[k] = tmp[i++];
+            else
+                order[k] = tmp[j++];
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two inputs that are sorted on their join fields by
+ * walking them in step. Children that are not already sorted are sorted
+ * with an {@link OrderBy} first; see {@link #isSortedOn}.
+ * <p>
+ * Equality joins stream both inputs and buffer only the run of right tuples
+ * that share the current key. Range joins (&lt;, &lt;=, &gt;, &gt;=) keep the
+ * sorted right input in memory: the right tuples that match a left tuple
+ * form a band, a suffix or prefix of the right input, whose boundary only
+ * moves forward as the left key grows. Output comes out sorted on the left
+ * join field.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+
+    /** The children, sorted if they needed to be. */
+    private transient DbIterator sorted1;
+    private transient DbIterator sorted2;
+
+    private transient Tuple left;
+    // equality join state
+    private transient Tuple right;
+    private transient ArrayList<Tuple> group;
+    private transient Iterator<Tuple> groupIt;
+    // range join state
+    private transient ArrayList<Tuple> rights;
+    private transient int bound;
+    private transient int pos;
+    private transient int end;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on
+     * 
+     * @param p
+     *            The predicate to use to join the children; its operator must
+     *            be EQUALS or one of the range comparisons
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /** @return true if a SortMergeJoin can evaluate predicates with op */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the tuples of it are known to come out in ascending
+     *         order of field, so that a SortMergeJoin need not sort them
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof SortMergeJoin)
+            return ((SortMergeJoin) it).getJoinPredicate().getField1() == field;
+        // a B+ tree returns its tuples in key order
+        if (it instanceof BTreeScan)
+            return ((BTreeScan) it).keyField() == field;
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    /**
+     * @see simpledb.TupleDesc#merge(TupleDesc, TupleDesc) for possible
+     *      implementation logic.
+     */
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        sorted1 = isSortedOn(child1, p.getField1()) ? child1 : new OrderBy(p.getField1(), true, child1);
+        sorted2 = isSortedOn(child2, p.getField2()) ? child2 : new OrderBy(p.getField2(), true, child2);
+        sorted1.open();
+        sorted2.open();
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (sorted1 != null) {
+            // an OrderBy closed its child once it had read it
+            sorted1.close();
+            sorted2.close();
+        }
+        sorted1 = sorted2 = null;
+        left = right = null;
+        group = rights = null;
+        groupIt = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorted1.rewind();
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            sorted2.rewind();
+        start();
+    }
+
+    /** Reset the merge state; the range join also loads the right input. */
+    private void start() throws DbException, TransactionAbortedException {
+        left = null;
+        groupIt = null;
+        group = new ArrayList<Tuple>();
+        if (p.getOperator() == Predicate.Op.EQUALS) {
+            right = sorted2.hasNext() ? sorted2.next() : null;
+        } else {
+            if (rights == null) {
+                rights = new ArrayList<Tuple>();
+                while (sorted2.hasNext())
+                    rights.add(sorted2.next());
+            }
+            bound = 0;
+            pos = end = 0;
+        }
+    }
+
+    /** Compare the join field of a left tuple to that of a right tuple. */
+    private int compare(Tuple l, Tuple r) {
+        Field a = l.getField(p.getField1());
+        Field b = r.getField(p.getField2());
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     * <p>
+     * As with {@link Join}, the tuples returned are the concatenation of the
+     * joining tuples from the left and right relation.
+     * 
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEquals();
+        return fetchNextRange();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (groupIt != null && groupIt.hasNext())
+                return joinTuples(left, groupIt.next());
+            if (!sorted1.hasNext())
+                return null;
+            left = sorted1.next();
+            // a run of equal left keys reuses the buffered group
+            if (!group.isEmpty() && compare(left, group.get(0)) == 0) {
+                groupIt = group.iterator();
+                continue;
+            }
+            groupIt = null;
+            group.clear();
+            while (right != null && compare(left, right) > 0)
+                right = sorted2.hasNext() ? sorted2.next() : null;
+            if (right == null)
+                return null;
+            if (compare(left, right) < 0)
+                continue;
+            while (right != null && compare(left, right) == 0) {
+                group.add(right);
+                right = sorted2.hasNext() ? sorted2.next() : null;
+            }
+            groupIt = group.iterator();
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (left != null && pos < end)
+                return joinTuples(left, rights.get(pos++));
+            if (!sorted1.hasNext())
+                return null;
+            left = sorted1.next();
+            switch (p.getOperator()) {
+            case LESS_THAN:
+                // left < right: rights after the last one <= left
+                while (bound < rights.size() && compare(left, rights.get(bound)) >= 0)
+                    bound++;
+                pos = bound;
+                end = rights.size();
+                break;
+            case LESS_THAN_OR_EQ:
+                while (bound < rights.size() && compare(left, rights.get(bound)) > 0)
+                    bound++;
+                pos = bound;
+                end = rights.size();
+                break;
+            case GREATER_THAN:
+                // left > right: rights before the first one >= left
+                while (bound < rights.size() && compare(left, rights.get(bound)) > 0)
+                    bound++;
+                pos = 0;
+                end = bound;
+                break;
+            case GREATER_THAN_OR_EQ:
+                while (bound < rights.size() && compare(left, rights.get(bound)) >= 0)
+                    bound++;
+                pos = 0;
+                end = bound;
+                break;
+            default:
+                throw new IllegalStateException("impossible to reach here");
+            }
+        }
+    }
+
+    private Tuple joinTuples(Tuple leftT, Tuple rightT) {
+        int size1 = leftT.getTupleDesc().numFields();
+        int size2 = rightT.getTupleDesc().numFields();
+
+        Tuple mergeT = new Tuple(this.getTupleDesc());
+        for (int i = 0; i < size1; i++) {
+            mergeT.setField(i, leftT.getField(i));
+        }
+        for (int i = 0; i < size2; i++) {
+            mergeT.setField(i + size1, rightT.getField(i));
+        }
+        return mergeT;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples that operators write when their
+ * input does not fit in memory. Tuples are appended with {@link #add} and
+ * read back, in the order they were added, through {@link #iterator}; the
+ * file is removed by {@link #delete}, or when the JVM exits.
+ * <p>
+ * I/O errors are reported as DbExceptions, since the operators that spill
+ * cannot do anything more useful with them.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int count = 0;
+
+    /**
+     * Create an empty spill file for tuples with the given schema.
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /** @return the schema of the tuples in this file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples added to this file */
+    public int size() {
+        return count;
+    }
+
+    /** @return the number of bytes the tuples of this file take up */
+    public long bytes() {
+        return (long) count * td.getSize();
+    }
+
+    /**
+     * Append a tuple to this file.
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file has been deleted");
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(out);
+        } catch (IOException e) {
+            throw new DbException("could not write spill file " + file + ": " + e.getMessage());
+        }
+        count++;
+    }
+
+    /**
+     * @return an iterator over the tuples added so far. Tuples added after
+     *         the iterator is opened are not seen by it.
+     */
+    public DbIterator iterator() throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file has been deleted");
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file " + file + ": " + e.getMessage());
+        }
+        return new SpillIterator();
+    }
+
+    /** Remove the file from disk. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is going away anyway
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    private class SpillIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient DataInputStream in;
+        private int remaining;
+        private int total;
+
+        public void open() throws DbException {
+            close();
+            total = count;
+            remaining = total;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("could not read spill file " + file + ": " + e.getMessage());
+            }
+        }
+
+        public boolean hasNext() {
+            if (in == null)
+                throw new IllegalStateException("Operator not yet open");
+            return remaining > 0;
+        }
+
+        public Tuple next() throws DbException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("could not read spill file " + file + ": " + e.getMessage());
+            }
+            remaining--;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing was written through this stream
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -6,9 +6,11 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Knows how to compute some aggregate over a set of StringFields.
  */
-public class StringAggregator implements Aggregator {
+public class StringAggregator implements PartialAggregator {
 
     private static final long serialVersionUID = 1L;
+    /** Rough size of a map entry and the objects it holds, not counting the group value. */
+    private static final int GROUP_BYTES = 96;
     private int gbfield;
     private Type gbfieldtype;
     private int afield;
@@ -50,6 +52,39 @@ public class StringAggregator implements Aggregator {
     	}
     }
     
+    /** {@inheritDoc} The state of a group is its count. */
+    public TupleDesc partialTupleDesc() {
+    	return new TupleDesc(new Type[] {this.gbfieldtype, Type.INT_TYPE});
+    }
+
+    /** The partial state of a group is its result so far. */
+    public DbIterator partialIterator() {
+    	return iterator();
+    }
+
+    public void mergePartial(Tuple partial) {
+    	Field key = partial.getField(0);
+    	Integer count = this.valueMap.get(key);
+    	this.valueMap.put(key, (count == null ? 0 : count) + partial.getInt(1));
+    }
+
+    public void merge(Aggregator other) {
+    	if (!(other instanceof StringAggregator))
+    		throw new IllegalArgumentException("cannot merge a " + other.getClass().getSimpleName());
+    	for (Map.Entry<Field, Integer> e : ((StringAggregator) other).valueMap.entrySet()) {
+    		Integer count = this.valueMap.get(e.getKey());
+    		this.valueMap.put(e.getKey(), (count == null ? 0 : count) + e.getValue());
+    	}
+    }
+
+    public int numGroups() {
+    	return this.valueMap.size();
+    }
+
+    public long estimateBytes() {
+    	return (long) this.valueMap.size() * (GROUP_BYTES + this.gbfieldtype.getLen());
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -65,6 +65,9 @@ public class TableStats {
     private final Object[] histograms;
     private final int[] maxs, mins;
     private final TupleDesc td;
+    /** Key field of the table if it is a B+ tree, or -1, and the tree's height. */
+    private int indexKeyField = -1;
+    private int indexHeight = 0;
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -93,7 +96,7 @@ public class TableStats {
         DbFile f = Database.getCatalog().getDatabaseFile(tableid);
         td = f.getTupleDesc();
 
-        if (!(f instanceof HeapFile)) {
+        if (!(f instanceof HeapFile) && !(f instanceof BTreeFile)) {
             basePages = 0;
             baseTups = 0;
             this.costPerPageIO=ioCostPerPage;
@@ -142,7 +145,12 @@ public class TableStats {
             }
         }
 
-        basePages = ((HeapFile) f).numPages();
+        basePages = f instanceof HeapFile ? ((HeapFile) f).numPages()
+                : ((BTreeFile) f).numPages();
+        if (f instanceof BTreeFile) {
+            indexKeyField = ((BTreeFile) f).keyField();
+            indexHeight = estimateIndexHeight(td.getFieldType(indexKeyField), basePages);
+        }
         int count = 0;
         try {
             Transaction t = new Transaction();
@@ -189,6 +197,45 @@ public class TableStats {
         //return 0;
     }
 
+    /**
+     * Estimates the height of a B+ tree of the given number of pages: the
+     * internal levels above its leaves, each full, plus the root pointer page.
+     */
+    private static int estimateIndexHeight(Type keyType, int pages) {
+        // the entries of a full internal page, as BTreeInternalPage counts them
+        int bitsPerEntry = keyType.getLen() * 8 + BTreeInternalPage.INDEX_SIZE * 8 + 1;
+        int extraBits = 2 * BTreeInternalPage.INDEX_SIZE * 8 + 8 + 1;
+        int fanout = (BufferPool.getPageSize() * 8 - extraBits) / bitsPerEntry + 1;
+        int height = 1;
+        for (long level = Math.max(1, pages); level > 1; level = (level + fanout - 1) / fanout)
+            height++;
+        return height;
+    }
+
+    /**
+     * @return the field the table is keyed on if it is stored in a B+ tree,
+     *         or -1 if it is not
+     */
+    public int indexKeyField() {
+        return indexKeyField;
+    }
+
+    /**
+     * Estimates the cost of scanning the table through its B+ tree for the
+     * tuples that satisfy a predicate on the key with the given selectivity:
+     * a descent from the root to the first matching leaf, then the leaves
+     * that hold the matching tuples, which are all adjacent in key order.
+     * 
+     * @return The estimated cost of the index scan, or
+     *         Double.POSITIVE_INFINITY if the table is not a B+ tree
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        if (indexKeyField < 0)
+            return Double.POSITIVE_INFINITY;
+        double leaves = Math.max(1.0, Math.ceil(selectivity * basePages));
+        return (indexHeight + leaves) * costPerPageIO;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an ORDER BY that only returns the first n tuples of the ordering,
+ * as for ORDER BY ... LIMIT n. It reads the whole child but keeps only a
+ * bounded heap of the n best tuples so far, whose root is the worst of them:
+ * a tuple that does not beat the root is dropped with a single comparison.
+ * Memory is therefore proportional to n rather than to the input, and
+ * nothing is written to disk.
+ * <p>
+ * The order, and which of several equal tuples are kept, are those of
+ * {@link OrderBy}: among tuples that are equal on the sort fields, the
+ * earlier ones come first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int n;
+
+    /** The kept tuples, in output order once the child has been read. */
+    private transient ArrayList<Tuple> top;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int n, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("one order is needed per sort field");
+        if (n < 0)
+            throw new IllegalArgumentException("n must not be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.n = n;
+    }
+
+    public TopN(int orderbyField, boolean asc, int n, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, n, child);
+    }
+
+    /** @return all the fields sorted on, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field sorted on, true if its order is ascending */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        top = new ArrayList<Tuple>();
+        if (n > 0) {
+            Heap heap = new Heap(new TupleComparator(orderByFields, ascs));
+            child.open();
+            while (child.hasNext())
+                heap.offer(child.next());
+            child.close();
+            heap.drainTo(top);
+        }
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        top = null;
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    /**
+     * A binary max-heap of at most n tuples, ordered by the comparator and
+     * then by arrival, so that its root is the tuple that would come out
+     * last.
+     */
+    private class Heap {
+        private final Comparator<Tuple> comparator;
+        private Tuple[] tuples;
+        private long[] seqs;
+        private int size = 0;
+        private long seq = 0;
+
+        Heap(Comparator<Tuple> comparator) {
+            this.comparator = comparator;
+            // grown as needed, so that a large n does not cost memory up front
+            int initial = Math.min(n, 1024);
+            this.tuples = new Tuple[initial];
+            this.seqs = new long[initial];
+        }
+
+        /** @return true if the tuple at i comes out after the one at j */
+        private boolean after(int i, int j) {
+            int c = comparator.compare(tuples[i], tuples[j]);
+            return c > 0 || (c == 0 && seqs[i] > seqs[j]);
+        }
+
+        void offer(Tuple t) {
+            long s = seq++;
+            if (size < n) {
+                if (size == tuples.length) {
+                    int grown = (int) Math.min(n, 2L * size);
+                    tuples = Arrays.copyOf(tuples, grown);
+                    seqs = Arrays.copyOf(seqs, grown);
+                }
+                int i = size++;
+                tuples[i] = t;
+                seqs[i] = s;
+                siftUp(i);
+            } else if (comparator.compare(t, tuples[0]) < 0) {
+                // t comes out before the root; ties go to the earlier root
+                tuples[0] = t;
+                seqs[0] = s;
+                siftDown(0);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!after(i, parent))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int l = 2 * i + 1;
+                if (l >= size)
+                    break;
+                int c = l + 1 < size && after(l + 1, l) ? l + 1 : l;
+                if (!after(c, i))
+                    break;
+                swap(i, c);
+                i = c;
+            }
+        }
+
+        private void swap(int i, int j) {
+            Tuple t = tuples[i];
+            tuples[i] = tuples[j];
+            tuples[j] = t;
+            long s = seqs[i];
+            seqs[i] = seqs[j];
+            seqs[j] = s;
+        }
+
+        /** Empty the heap into out, in output order. */
+        void drainTo(ArrayList<Tuple> out) {
+            int count = size;
+            Tuple[] sorted = new Tuple[count];
+            while (size > 0) {
+                sorted[size - 1] = tuples[0];
+                size--;
+                swap(0, size);
+                tuples[size] = null;
+                siftDown(0);
+            }
+            out.addAll(Arrays.asList(sorted));
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -38,6 +38,22 @@ public class Tuple implements Serializable {
     	}
     }
 
+    /**
+     * Create a tuple that allocates no field storage, for subclasses that
+     * produce their field values themselves. Such subclasses must override
+     * {@link #getField} and {@link #setField}.
+     *
+     * @param td
+     *            the schema of this tuple.
+     * @param rid
+     *            the RecordId of this tuple; may be null.
+     */
+    protected Tuple(TupleDesc td, RecordId rid) {
+    	desc = td;
+    	recordID = rid;
+    	fields = null;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -90,6 +106,17 @@ public class Tuple implements Serializable {
         return fields.get(i);
     }
 
+    /**
+     * @return the value of the ith field, which must be an INT_TYPE field.
+     *         Unlike getField, this need not create a Field object.
+     *
+     * @param i
+     *            field index to return. Must be a valid index.
+     */
+    public int getInt(int i) {
+        return ((IntField) getField(i)).getValue();
+    }
+
     /**
      * Returns the contents of this Tuple as a string. Note that to pass the
      * system tests, the format needs to be as follows:
@@ -104,9 +131,9 @@ public class Tuple implements Serializable {
     		StringBuilder SB = new StringBuilder();
     		
     		for(int i = 0; i < desc.numFields()-1; i++) {
-    			SB.append(fields.get(i).toString() + " ");
+    			SB.append(getField(i).toString() + " ");
     		}
-    		SB.append(fields.get(desc.numFields()-1).toString() + "\n");
+    		SB.append(getField(desc.numFields()-1).toString() + "\n");
     		return SB.toString();
     	} catch (UnsupportedOperationException e) {
     		throw new UnsupportedOperationException("Implement this");
@@ -120,6 +147,13 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        if (fields == null) {
+        	ArrayList<Field> values = new ArrayList<Field>(desc.numFields());
+        	for (int i = 0; i < desc.numFields(); i++) {
+        		values.add(getField(i));
+        	}
+        	return values.iterator();
+        }
         return (Iterator<Field>) fields.iterator();
     }
 
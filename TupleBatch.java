@@ -0,0 +1,225 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to a fixed number of rows in column-major form, which
+ * is how {@link BatchIterator}s pass data to one another. INT_TYPE columns
+ * are stored as int arrays and STRING_TYPE columns as String arrays, so an
+ * operator can work through a whole column in a tight loop.
+ * <p>
+ * Rows are appended to the batch; operators that drop rows, like
+ * {@link BatchFilter}, do not move any data but narrow the batch's selection
+ * vector instead. Consumers should visit rows as
+ * <pre>
+ *     for (int k = 0; k &lt; b.numSelected(); k++) {
+ *         int row = b.selected(k);
+ *         ...
+ *     }
+ * </pre>
+ * A batch returned by a BatchIterator belongs to that iterator and is only
+ * valid until the next call to it.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of rows per batch. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private TupleDesc td;
+    private final int capacity;
+    /** One int[] or String[] per field. */
+    private Object[] columns;
+    /** Where each row came from, when known; see {@link #getRecordId}. */
+    private PageId[] pages;
+    private int[] slots;
+    private int size = 0;
+    /** Indexes of the selected rows, or null if all rows are selected. */
+    private int[] selection;
+    private int numSelected = 0;
+    /** Storage for the selection vector, allocated on first use. */
+    private int[] selectionBuf;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the schema of the rows of the batch
+     * @param capacity the maximum number of rows the batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                columns[i] = new int[capacity];
+            else
+                columns[i] = new String[capacity];
+        }
+        this.pages = new PageId[capacity];
+        this.slots = new int[capacity];
+    }
+
+    /** Create a batch that shares its column arrays with another; see {@link #project}. */
+    private TupleBatch(TupleDesc td, int capacity, Object[] columns) {
+        this.td = td;
+        this.capacity = capacity;
+        this.columns = columns;
+    }
+
+    /** @return the schema of the rows of this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the maximum number of rows this batch can hold */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows stored, selected or not */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if no more rows can be appended */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** Remove all rows. */
+    public void clear() {
+        size = 0;
+        numSelected = 0;
+        selection = null;
+    }
+
+    /**
+     * Append a row whose values the caller then stores into the column
+     * arrays at the returned index.
+     *
+     * @param pid the page the row was read from, or null
+     * @param slot the slot the row was read from
+     * @return the index of the new row
+     */
+    public int append(PageId pid, int slot) {
+        if (size == capacity)
+            throw new IllegalStateException("batch is full");
+        if (selection != null)
+            throw new IllegalStateException("cannot append to a filtered batch");
+        pages[size] = pid;
+        slots[size] = slot;
+        numSelected = ++size;
+        return size - 1;
+    }
+
+    /**
+     * Append a copy of the values of a tuple.
+     *
+     * @return the index of the new row
+     */
+    public int append(Tuple t) {
+        RecordId rid = t.getRecordId();
+        int row = rid == null ? append(null, -1) : append(rid.getPageId(), rid.tupleno());
+        for (int i = 0; i < columns.length; i++)
+            setField(row, i, t.getField(i));
+        return row;
+    }
+
+    /** @return the values of INT_TYPE field i, indexed by row */
+    public int[] intColumn(int i) {
+        return (int[]) columns[i];
+    }
+
+    /** @return the values of STRING_TYPE field i, indexed by row */
+    public String[] stringColumn(int i) {
+        return (String[]) columns[i];
+    }
+
+    /** @return field i of the given row, as a Field */
+    public Field getField(int row, int i) {
+        if (columns[i] instanceof int[])
+            return new IntField(((int[]) columns[i])[row]);
+        return new StringField(((String[]) columns[i])[row], Type.STRING_LEN);
+    }
+
+    /** Set field i of the given row. */
+    public void setField(int row, int i, Field f) {
+        if (columns[i] instanceof int[])
+            ((int[]) columns[i])[row] = ((IntField) f).getValue();
+        else
+            ((String[]) columns[i])[row] = ((StringField) f).getValue();
+    }
+
+    /** @return the RecordId the given row was read from, or null if unknown */
+    public RecordId getRecordId(int row) {
+        if (pages == null || pages[row] == null)
+            return null;
+        return new RecordId(pages[row], slots[row]);
+    }
+
+    /** @return the given row as a new Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(row, i));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /** @return the number of selected rows */
+    public int numSelected() {
+        return numSelected;
+    }
+
+    /** @return the index of the k-th selected row */
+    public int selected(int k) {
+        return selection == null ? k : selection[k];
+    }
+
+    /**
+     * @return the array a filter fills with the indexes of the rows it keeps
+     *         before calling {@link #setSelection}. Since the kept rows are a
+     *         subsequence of the selected ones, the filter can write entry m
+     *         after reading {@link #selected}(k) for every k &gt;= m, even
+     *         though the array may be the current selection vector itself.
+     */
+    public int[] selectionBuffer() {
+        if (selectionBuf == null)
+            selectionBuf = new int[capacity];
+        return selectionBuf;
+    }
+
+    /**
+     * Narrow the selection to the first n rows listed in
+     * {@link #selectionBuffer}.
+     */
+    public void setSelection(int n) {
+        selection = selectionBuffer();
+        numSelected = n;
+    }
+
+    /**
+     * Make out a view of the given fields of this batch. The view shares
+     * this batch's column arrays and selection, so it is only valid as long
+     * as this batch is.
+     *
+     * @param out a batch previously returned by this method, or null
+     * @param outTd the schema of the projected rows
+     * @param fields the fields of this batch to keep, in output order
+     * @return the view, which is out if out was not null
+     */
+    public TupleBatch project(TupleBatch out, TupleDesc outTd, int[] fields) {
+        if (out == null)
+            out = new TupleBatch(outTd, capacity, new Object[fields.length]);
+        for (int i = 0; i < fields.length; i++)
+            out.columns[i] = columns[fields[i]];
+        out.pages = pages;
+        out.slots = slots;
+        out.size = size;
+        out.selection = selection;
+        out.numSelected = numSelected;
+        return out;
+    }
+}
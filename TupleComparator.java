@@ -0,0 +1,37 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on one or more of their fields, each ascending or
+ * descending, as {@link OrderBy} and {@link TopN} sort them.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] ascs;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    /** Compare on fields[0], then on fields[1] among equal tuples, and so on. */
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return ascs[i] ? 1 : -1;
+            else
+                return ascs[i] ? -1 : 1;
+        }
+        return 0;
+    }
+    
+}
@@ -8,6 +8,8 @@ import java.util.*;
  */
 public class TupleDesc implements Serializable {
 	private List<TDItem> tdItems;
+	/** Field offsets within a serialized tuple, computed on first use. */
+	private transient int[] offsets;
 
     /**
      * A help class to facilitate organizing the information of each field
@@ -158,6 +160,24 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * @return the byte offset of the ith field within the serialized form of
+     *         tuples with this TupleDesc
+     * @param i
+     *            index of the field. It must be a valid index.
+     */
+    public int getFieldOffset(int i) {
+    	int[] offs = offsets;
+    	if (offs == null) {
+    		offs = new int[tdItems.size()];
+    		for (int j = 1; j < offs.length; j++) {
+    			offs[j] = offs[j-1] + tdItems.get(j-1).fieldType.getLen();
+    		}
+    		offsets = offs;
+    	}
+    	return offs[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). First-time pages enter the A1in
+ * FIFO; if they are evicted from there their ids are remembered in the A1out
+ * ghost queue, and a page that is read again while its id is in A1out is
+ * promoted into the Am LRU queue. Hits in Am move a page to the MRU end,
+ * hits in A1in are ignored. A sequential scan therefore only ever cycles
+ * through A1in and never displaces the hot pages held in Am.
+ * <p>
+ * All queues are linked hash sets, so every operation is constant time apart
+ * from skipping pages the BufferPool refuses to evict.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    /**
+     * Create a 2Q policy with the tuning suggested in the paper: A1in holds a
+     * quarter of the pool and A1out remembers half a pool's worth of ids.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public TwoQueuePolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * Create a 2Q policy.
+     *
+     * @param kin target size of the A1in queue
+     * @param kout maximum number of ids remembered in A1out
+     */
+    public TwoQueuePolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageAdmitted(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            pageAccessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (!a1in.remove(pid))
+            am.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(VictimFilter filter) {
+        PageId victim;
+        if (a1in.size() > kin) {
+            victim = evictFrom(a1in, filter);
+            if (victim != null) {
+                remember(victim);
+                return victim;
+            }
+            return evictFrom(am, filter);
+        }
+        victim = evictFrom(am, filter);
+        if (victim != null)
+            return victim;
+        victim = evictFrom(a1in, filter);
+        if (victim != null)
+            remember(victim);
+        return victim;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> queue, VictimFilter filter) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (filter.isEvictable(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Class representing a type in SimpleDB.
@@ -24,6 +25,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -42,6 +48,15 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = Math.max(0, Math.min(buf.getInt(offset), STRING_LEN));
+            byte bs[] = new byte[strLen];
+            for (int i = 0; i < strLen; i++)
+                bs[i] = buf.get(offset + 4 + i);
+            return new StringField(new String(bs), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -60,4 +75,15 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer at the given absolute offset. The
+   *   buffer's position is not used or changed, so several threads may
+   *   decode from the same buffer at once.
+   * @param buf The buffer to read from
+   * @param offset The offset of the field in buf
+   * @throws IndexOutOfBoundsException if the field extends past the end of buf
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }